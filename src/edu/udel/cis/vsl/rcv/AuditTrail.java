@@ -0,0 +1,199 @@
+package edu.udel.cis.vsl.rcv;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.Collection;
+
+/**
+ * <p>
+ * Records the path of every ballot through the rounds of the elections run by
+ * {@link RCV#execute(PrintStream, int)}: the candidate the ballot counted
+ * toward in each round of each place, and the round in which it became
+ * exhausted.
+ * </p>
+ *
+ * <p>
+ * The paths are run-length encoded: a transition (place, round, candidate) is
+ * stored only when the candidate a ballot counts toward differs from the one it
+ * counted toward in the previous round of the same place. Candidates are
+ * identified by their index in the {@link CandidateIndex} of all candidates,
+ * and an exhausted ballot by {@link #EXHAUSTED}. The transitions of all ballots
+ * are stored in a single primitive array, each one linked to the next
+ * transition of the same ballot, so the trail takes a few integers per ballot
+ * plus four per transition. Ballots are looked up by ID using binary search.
+ * Only the ballots whose top entry was eliminated are recorded in a round after
+ * the first (see {@link Election}), so the cost of recording is proportional to
+ * the work of moving ballots between candidates.
+ * </p>
+ */
+public class AuditTrail {
+
+	/**
+	 * The candidate index recorded for a ballot with no remaining entries.
+	 */
+	public final static int EXHAUSTED = -1;
+
+	/**
+	 * The numbering of the candidates.
+	 */
+	private CandidateIndex index;
+
+	/**
+	 * The ballot IDs, sorted. The index of a ballot's ID in this array is the
+	 * ballot's slot.
+	 */
+	private int[] ids;
+
+	/**
+	 * The transitions of all ballots, in the order recorded. Each transition
+	 * occupies four consecutive elements: place, round, candidate index, and the
+	 * offset of the next transition of the same ballot (or -1). Only the first
+	 * size elements are used.
+	 */
+	private int[] data;
+
+	/**
+	 * The number of elements of data used.
+	 */
+	private int size = 0;
+
+	/**
+	 * The offset in data of the first transition of each ballot, indexed by slot,
+	 * or -1 if there is none.
+	 */
+	private int[] first;
+
+	/**
+	 * The offset in data of the last transition of each ballot, indexed by slot,
+	 * or -1 if there is none.
+	 */
+	private int[] last;
+
+	/**
+	 * Creates new empty audit trail for the given ballots.
+	 *
+	 * @param ballots the ballots whose paths will be recorded
+	 * @param index   the numbering of the candidates
+	 */
+	AuditTrail(Collection<Ballot> ballots, CandidateIndex index) {
+		int n = ballots.size(), i = 0;
+
+		this.index = index;
+		this.ids = new int[n];
+		for (Ballot ballot : ballots)
+			ids[i++] = ballot.id;
+		Arrays.sort(ids);
+		this.data = new int[4 * Math.max(n, 4)];
+		this.first = new int[n];
+		this.last = new int[n];
+		Arrays.fill(first, -1);
+		Arrays.fill(last, -1);
+	}
+
+	/**
+	 * Returns the slot of the ballot with the given ID, or a negative number if
+	 * there is no such ballot.
+	 */
+	int slotOf(int id) {
+		return Arrays.binarySearch(ids, id);
+	}
+
+	/**
+	 * Records that the ballot in the given slot counts toward the given candidate
+	 * in the given round. Nothing is stored if that is the candidate the ballot
+	 * already counted toward in the same place.
+	 *
+	 * @param slot  the ballot's slot
+	 * @param place the place being computed
+	 * @param round the round number
+	 * @param top   the candidate, or null if the ballot is exhausted
+	 */
+	void record(int slot, int place, int round, Candidate top) {
+		int c = top == null ? EXHAUSTED : index.indexOf(top), t = last[slot];
+
+		if (t >= 0 && data[t] == place && data[t + 2] == c)
+			return;
+		if (size == data.length)
+			data = Arrays.copyOf(data, 2 * size);
+		data[size] = place;
+		data[size + 1] = round;
+		data[size + 2] = c;
+		data[size + 3] = -1;
+		if (t >= 0)
+			data[t + 3] = size;
+		else
+			first[slot] = size;
+		last[slot] = size;
+		size += 4;
+	}
+
+	/**
+	 * Returns the recorded transitions of the ballot with the given ID.
+	 *
+	 * @param id a ballot ID
+	 * @return array containing the transitions, three elements each: place,
+	 *         round, candidate index (or {@link #EXHAUSTED}); or null if there is
+	 *         no ballot with that ID
+	 */
+	public int[] path(int id) {
+		int slot = slotOf(id);
+		if (slot < 0)
+			return null;
+		int n = 0;
+		for (int t = first[slot]; t >= 0; t = data[t + 3])
+			n += 3;
+		int[] result = new int[n];
+		n = 0;
+		for (int t = first[slot]; t >= 0; t = data[t + 3], n += 3)
+			System.arraycopy(data, t, result, n, 3);
+		return result;
+	}
+
+	/**
+	 * Describes the path of the ballot with the given ID, e.g.,
+	 * <code>Ballot 3: place 1: round 1 Kathy, round 3 Steve, round 4 exhausted; place 2: round 1 Steve</code>.
+	 *
+	 * @param id a ballot ID
+	 * @return the description, or null if there is no ballot with that ID
+	 */
+	public String describe(int id) {
+		int slot = slotOf(id);
+		if (slot < 0)
+			return null;
+		StringBuilder sb = new StringBuilder("Ballot " + id + ":");
+		for (int t = first[slot], prev = -1; t >= 0; prev = t, t = data[t + 3]) {
+			if (prev < 0 || data[t] != data[prev])
+				sb.append(prev < 0 ? " " : "; ").append("place ").append(data[t]).append(": ");
+			else
+				sb.append(", ");
+			sb.append("round ").append(data[t + 1]).append(' ');
+			sb.append(data[t + 2] == EXHAUSTED ? "exhausted" : index.get(data[t + 2]).name);
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Prints the path of every ballot, one per line, in order of ballot ID.
+	 *
+	 * @param out stream to which to print
+	 */
+	public void print(PrintStream out) {
+		for (int id : ids)
+			out.println(describe(id));
+	}
+
+	/**
+	 * Writes the path of every ballot to a file, in the format of
+	 * {@link #print(PrintStream)}.
+	 *
+	 * @param file the file to write
+	 * @throws FileNotFoundException if the file cannot be opened for writing
+	 */
+	public void export(File file) throws FileNotFoundException {
+		PrintStream out = new PrintStream(file);
+		print(out);
+		out.close();
+	}
+}
@@ -6,12 +6,12 @@ import java.io.FileNotFoundException;
 import java.io.FileReader;
 import java.io.IOException;
 import java.io.PrintStream;
+import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashSet;
 import java.util.Map;
 import java.util.Set;
-import java.util.function.Predicate;
 
 /**
  * A Ballot is a sequence of Candidates ranked from most to least preferred. It
@@ -21,6 +21,18 @@ import java.util.function.Predicate;
  */
 public class Ballot {
 
+	/**
+	 * The weight of one whole vote. Weights are fixed-point numbers with this
+	 * scale, so fractional transfers use exact integer arithmetic.
+	 */
+	public final static long WEIGHT_ONE = 1_000_000L;
+
+	/**
+	 * The units of a ballot not in any unit, or whose units are not being
+	 * recorded; shared by all such ballots.
+	 */
+	final static int[] NO_UNITS = new int[0];
+
 	/**
 	 * ID number of this ballot, unique among all ballots participating in this
 	 * election.
@@ -32,6 +44,34 @@ public class Ballot {
 	 */
 	ArrayList<Candidate> entries;
 
+	/**
+	 * Index of this ballot in the {@link AuditTrail} of the election it belongs
+	 * to, or -1 if its path is not being recorded.
+	 */
+	int slot = -1;
+
+	/**
+	 * The weight of this ballot, in units of {@link #WEIGHT_ONE}. This is always
+	 * one whole vote except in an {@link STVElection}, where transfers of
+	 * surpluses reduce it.
+	 */
+	long weight = WEIGHT_ONE;
+
+	/**
+	 * The hierarchy of units containing this ballot, outermost first, e.g.,
+	 * district, ward, precinct; or null if the ballot does not belong to any
+	 * unit. A parsed ballot belongs to the directories containing its file, below
+	 * the directory of the candidate file (see {@link #groupOf(File, File)}).
+	 */
+	String[] group = null;
+
+	/**
+	 * Indexes of the units of {@link #group} in the {@link Rollup} of the
+	 * election this ballot belongs to, one per level; empty if the tallies of
+	 * units are not being recorded.
+	 */
+	int[] units = NO_UNITS;
+
 	/**
 	 * Constructs new ballot. The entries are copied into a new array so the given
 	 * one may be reclaimed.
@@ -92,8 +132,33 @@ public class Ballot {
 		return new Ballot(id, entries);
 	}
 
+	/**
+	 * Computes the group of a ballot parsed from the given file: the directories
+	 * containing the file below the root directory, outermost first. Both paths
+	 * are made absolute and normalized first, so the result does not depend on
+	 * how they were given, and directories above the root, such as the user's home
+	 * directory, are never units.
+	 * 
+	 * @param file the ballot file
+	 * @param root the directory below which directories are units
+	 * @return the group, or null if the file is directly in root or not below it
+	 */
+	static String[] groupOf(File file, File root) {
+		Path dir = file.getAbsoluteFile().toPath().normalize().getParent();
+		Path base = root.getAbsoluteFile().toPath().normalize();
+		if (dir == null || !dir.startsWith(base) || dir.equals(base))
+			return null;
+		ArrayList<String> group = new ArrayList<>();
+		for (Path name : base.relativize(dir))
+			group.add(name.toString());
+		return group.toArray(new String[group.size()]);
+	}
+
 	public Ballot duplicate() throws RCVException {
-		return new Ballot(this.id, this.entries);
+		Ballot result = new Ballot(this.id, this.entries);
+		result.group = this.group;
+		result.weight = this.weight;
+		return result;
 	}
 
 	/**
@@ -116,16 +181,21 @@ public class Ballot {
 
 	/**
 	 * Removes all candidates from this ballot whose current votes is less than or
-	 * equal to bound.
+	 * equal to bound. The remaining entries are compacted in place, so no memory
+	 * is allocated.
 	 */
 	public void removeEntriesAtOrBelow(int bound) {
-		Predicate<Candidate> filter = new Predicate<>() {
-			@Override
-			public boolean test(Candidate t) {
-				return t.votes <= bound;
-			}
-		};
-		entries.removeIf(filter);
+		int n = entries.size(), j = 0;
+
+		for (int i = 0; i < n; i++) {
+			Candidate c = entries.get(i);
+			if (c.votes > bound)
+				entries.set(j++, c);
+		}
+		while (n > j) {
+			entries.removeLast();
+			n--;
+		}
 	}
 
 	/**
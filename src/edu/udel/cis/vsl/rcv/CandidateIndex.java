@@ -0,0 +1,61 @@
+package edu.udel.cis.vsl.rcv;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A numbering of a fixed set of candidates, used as a compact index for the
+ * candidates, e.g., in arrays and checkpoints. The candidates are sorted by
+ * name, and the i-th candidate in that order has index i. The numbering belongs
+ * to the object that created it; it is not stored in the Candidate objects,
+ * which may be shared by several elections.
+ */
+class CandidateIndex {
+
+	/**
+	 * The candidates, in order of index.
+	 */
+	private Candidate[] candidates;
+
+	/**
+	 * Map from candidate to its index.
+	 */
+	private Map<Candidate, Integer> indexMap = new HashMap<>();
+
+	/**
+	 * Creates the numbering of the given candidates.
+	 * 
+	 * @param candidates the candidates, with distinct names
+	 */
+	CandidateIndex(Collection<Candidate> candidates) {
+		this.candidates = candidates.toArray(new Candidate[candidates.size()]);
+		Arrays.sort(this.candidates, (c1, c2) -> c1.name.compareTo(c2.name));
+		for (int i = 0; i < this.candidates.length; i++)
+			indexMap.put(this.candidates[i], i);
+	}
+
+	/**
+	 * Returns the number of candidates.
+	 */
+	int size() {
+		return candidates.length;
+	}
+
+	/**
+	 * Returns the candidate with the given index.
+	 */
+	Candidate get(int index) {
+		return candidates[index];
+	}
+
+	/**
+	 * Returns the index of the given candidate, or -1 if the candidate is not in
+	 * the set.
+	 */
+	int indexOf(Candidate c) {
+		Integer result = indexMap.get(c);
+		return result == null ? -1 : result;
+	}
+}
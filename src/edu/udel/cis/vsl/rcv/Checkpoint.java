@@ -0,0 +1,178 @@
+package edu.udel.cis.vsl.rcv;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * <p>
+ * The contents of a checkpoint file written by a {@link CheckpointWriter}. A
+ * checkpoint is a journal of the rounds of the elections run by
+ * {@link RCV#execute(PrintStream, int)}, one record per line:
+ * </p>
+ *
+ * <ul>
+ * <li><code>F fingerprint</code>: the fingerprint of the inputs (see
+ * {@link RCV#fingerprint(int)})</li>
+ * <li><code>P place</code>: start of the election for the given place</li>
+ * <li><code>R round index:votes ...</code>: the state at the start of the
+ * round: the active candidates, identified by their index in the
+ * {@link CandidateIndex} of all candidates, with their current votes, in sorted
+ * order. Candidates of this place that are not
+ * listed have been eliminated.</li>
+ * <li><code>W index</code>: the winner of the current place</li>
+ * <li><code>X</code>: the election for the current place failed</li>
+ * </ul>
+ *
+ * <p>
+ * A round record for a round that was already recorded replaces it, together
+ * with any later rounds of that place. This happens when a resumed execution
+ * records the round it resumed from a second time.
+ * </p>
+ */
+public class Checkpoint {
+
+	/**
+	 * The recorded rounds of one place.
+	 */
+	static class Place {
+
+		/**
+		 * The recorded rounds, in order; element i is the state at round i+1,
+		 * alternating candidate index and votes.
+		 */
+		ArrayList<int[]> rounds = new ArrayList<>();
+
+		/**
+		 * Is the election for this place finished?
+		 */
+		boolean finished = false;
+
+		/**
+		 * Index of the winner, or -1 if there is none (yet).
+		 */
+		int winner = -1;
+	}
+
+	/**
+	 * The fingerprint of the inputs of the checkpointed execution.
+	 */
+	String fingerprint;
+
+	/**
+	 * The recorded places, in order: first place, second place, etc.
+	 */
+	ArrayList<Place> places = new ArrayList<>();
+
+	/**
+	 * The length in bytes of the complete records at the start of the file.
+	 * Anything after them is a partial record, which must be discarded before
+	 * further records are appended.
+	 */
+	long length;
+
+	private Checkpoint() {
+	}
+
+	private static RCVException malformed(File file, int lineno) {
+		return new RCVException("Malformed checkpoint " + file + " at line " + lineno);
+	}
+
+	/**
+	 * Reads a checkpoint file. A truncated last line, as may be left by a process
+	 * that was killed while writing, is ignored, and not included in
+	 * {@link #length}. A file with no fingerprint, such
+	 * as an empty file left by a process that was killed before writing anything,
+	 * contains nothing to resume from.
+	 *
+	 * @param file          the checkpoint file
+	 * @param numCandidates the number of candidates; all candidate indexes must be
+	 *                      less than this
+	 * @return the checkpoint, or null if the file has no fingerprint
+	 * @throws IOException  if an error occurs reading the file
+	 * @throws RCVException if the file is not a well-formed checkpoint
+	 */
+	static Checkpoint load(File file, int numCandidates) throws IOException, RCVException {
+		Checkpoint result = new Checkpoint();
+		byte[] bytes = Files.readAllBytes(file.toPath());
+		int n = bytes.length;
+		// an unterminated last line may be incomplete...
+		while (n > 0 && bytes[n - 1] != '\n')
+			n--;
+		result.length = n;
+		List<String> lines = new String(bytes, 0, n, StandardCharsets.UTF_8).lines().toList();
+		Place place = null;
+		for (int lineno = 1; lineno <= lines.size(); lineno++) {
+			String[] fields = lines.get(lineno - 1).split(" ");
+			try {
+				switch (fields[0]) {
+				case "F":
+					result.fingerprint = fields[1];
+					break;
+				case "P": {
+					int p = Integer.parseInt(fields[1]);
+					if (result.fingerprint == null || p < 1 || p > result.places.size() + 1)
+						throw malformed(file, lineno);
+					if (p == result.places.size() + 1)
+						result.places.add(new Place());
+					place = result.places.get(p - 1);
+					break;
+				}
+				case "R": {
+					int round = Integer.parseInt(fields[1]);
+					if (place == null || place.finished || round < 1 || round > place.rounds.size() + 1)
+						throw malformed(file, lineno);
+					int[] state = new int[2 * (fields.length - 2)];
+					for (int i = 2; i < fields.length; i++) {
+						String[] pair = fields[i].split(":");
+						state[2 * (i - 2)] = Integer.parseInt(pair[0]);
+						state[2 * (i - 2) + 1] = Integer.parseInt(pair[1]);
+						if (state[2 * (i - 2)] < 0 || state[2 * (i - 2)] >= numCandidates)
+							throw malformed(file, lineno);
+					}
+					while (place.rounds.size() >= round)
+						place.rounds.removeLast();
+					place.rounds.add(state);
+					break;
+				}
+				case "W":
+				case "X":
+					if (place == null || place.finished || place.rounds.isEmpty())
+						throw malformed(file, lineno);
+					place.finished = true;
+					if (fields[0].equals("W")) {
+						place.winner = Integer.parseInt(fields[1]);
+						int[] last = place.rounds.getLast();
+						if (last.length == 0 || last[0] != place.winner)
+							throw malformed(file, lineno);
+					}
+					break;
+				default:
+					throw malformed(file, lineno);
+				}
+			} catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+				throw malformed(file, lineno);
+			}
+		}
+		return result.fingerprint == null ? null : result;
+	}
+
+	/**
+	 * Prints a recorded round in the same format as
+	 * {@link Election#printState(PrintStream)}.
+	 *
+	 * @param out   stream to which to print
+	 * @param round the round number
+	 * @param state the recorded state, alternating candidate index and votes
+	 * @param index the numbering of the candidates
+	 */
+	static void printRound(PrintStream out, int round, int[] state, CandidateIndex index) {
+		out.println("Round " + round + ":");
+		for (int i = 0; i < state.length; i += 2)
+			out.println(index.get(state[i]).name + " (" + state[i + 1] + ")");
+	}
+}
@@ -0,0 +1,142 @@
+package edu.udel.cis.vsl.rcv;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Writes the records of a {@link Checkpoint} file. The records are formatted by
+ * the calling thread, but written and flushed by a single background thread, so
+ * the round loop does not wait for the file system. Records are written in the
+ * order in which they are submitted.
+ */
+public class CheckpointWriter {
+
+	/**
+	 * The checkpoint file.
+	 */
+	private File file;
+
+	/**
+	 * The numbering of the candidates used in the records.
+	 */
+	private CandidateIndex index;
+
+	/**
+	 * The open writer for the checkpoint file; only used by the executor thread.
+	 */
+	private BufferedWriter writer;
+
+	/**
+	 * Single thread which writes the records.
+	 */
+	private ExecutorService executor;
+
+	/**
+	 * The first error that occurred writing a record, or null if there has been
+	 * none. Once an error has occurred, no further records are written.
+	 */
+	private volatile IOException error = null;
+
+	/**
+	 * Opens the checkpoint file for writing. The file is truncated to the given
+	 * length, so that records are appended after the complete records of a
+	 * resumed checkpoint (see {@link Checkpoint#length}), not after a partial
+	 * record left by a process that was killed while writing.
+	 *
+	 * @param file   the checkpoint file
+	 * @param index  the numbering of the candidates used in the records
+	 * @param length the number of bytes of the existing file to keep; 0 to start
+	 *               a new checkpoint
+	 * @throws IOException if the file cannot be opened or truncated
+	 */
+	CheckpointWriter(File file, CandidateIndex index, long length) throws IOException {
+		FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+		try {
+			channel.truncate(length);
+			channel.position(length);
+		} catch (IOException e) {
+			channel.close();
+			throw e;
+		}
+		this.file = file;
+		this.index = index;
+		this.writer = new BufferedWriter(Channels.newWriter(channel, StandardCharsets.UTF_8));
+		this.executor = Executors.newSingleThreadExecutor(r -> {
+			Thread thread = new Thread(r, "rcv-checkpoint");
+			thread.setDaemon(true);
+			return thread;
+		});
+	}
+
+	private void submit(String record) {
+		executor.execute(() -> {
+			if (error != null)
+				return;
+			try {
+				writer.write(record);
+				writer.newLine();
+				writer.flush();
+			} catch (IOException e) {
+				error = e;
+			}
+		});
+	}
+
+	void fingerprint(String fingerprint) {
+		submit("F " + fingerprint);
+	}
+
+	void place(int place) {
+		submit("P " + place);
+	}
+
+	/**
+	 * Records the state at the start of a round.
+	 *
+	 * @param round         the round number
+	 * @param candidates    the active candidates, in sorted order, in the first
+	 *                      numCandidates elements
+	 * @param numCandidates the number of active candidates
+	 */
+	void round(int round, Candidate[] candidates, int numCandidates) {
+		StringBuilder sb = new StringBuilder("R ").append(round);
+		for (int i = 0; i < numCandidates; i++)
+			sb.append(' ').append(index.indexOf(candidates[i])).append(':').append(candidates[i].votes);
+		submit(sb.toString());
+	}
+
+	void winner(Candidate winner) {
+		submit("W " + index.indexOf(winner));
+	}
+
+	void failed() {
+		submit("X");
+	}
+
+	/**
+	 * Waits for all submitted records to be written, then closes the file.
+	 *
+	 * @throws IOException if an error occurred writing a record or closing the
+	 *                     file
+	 */
+	public void close() throws IOException {
+		executor.shutdown();
+		try {
+			while (!executor.awaitTermination(1, TimeUnit.SECONDS))
+				;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		writer.close();
+		if (error != null)
+			throw new IOException("Could not write checkpoint " + file + ": " + error.getMessage(), error);
+	}
+}
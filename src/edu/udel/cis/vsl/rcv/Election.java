@@ -1,12 +1,10 @@
 package edu.udel.cis.vsl.rcv;
 
 import java.io.PrintStream;
-import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
-import java.util.Comparator;
 import java.util.HashSet;
 import java.util.Set;
-import java.util.function.Predicate;
 
 /**
  * An instance of this class models a single RCV election, used to determine a
@@ -15,6 +13,14 @@ import java.util.function.Predicate;
  * round 1. Calling method {@link #execute(PrintStream)} will cause the RCV
  * algorithm to run through all rounds until the winner is found or all
  * candidates are eliminated (and the election fails).
+ *
+ * <p>
+ * The candidates and ballots are kept in arrays which shrink in place as
+ * candidates are eliminated and ballots become empty, and ties are broken by
+ * comparing ranks of the candidates' names computed once by the constructor.
+ * Hence the rounds allocate no memory, apart from what is needed to print,
+ * checkpoint, or record them.
+ * </p>
  */
 public class Election {
 
@@ -22,15 +28,33 @@ public class Election {
 	 * The active candidates. This is initially all candidates, but as rounds
 	 * progress, candidates are removed. This is always sorted by the current number
 	 * of votes assigned to a candidate, from most to least votes. For candidates
-	 * with the same number of votes, alphabetical order is used.
+	 * with the same number of votes, alphabetical order is used. Only the first
+	 * numCandidates elements are used.
 	 */
-	private ArrayList<Candidate> candidates;
+	private Candidate[] candidates;
+
+	/**
+	 * The rank of each element of candidates: the position of the candidate's
+	 * name in the alphabetical order of the names of all candidates of this
+	 * election. This array is permuted together with candidates.
+	 */
+	private int[] ranks;
+
+	/**
+	 * The number of active candidates.
+	 */
+	private int numCandidates;
 
 	/**
 	 * The active ballots. This is initially all ballots, then ballots are removed
-	 * as they become empty.
+	 * as they become empty. Only the first numBallots elements are used.
+	 */
+	private Ballot[] ballots;
+
+	/**
+	 * The number of active ballots.
 	 */
-	private Collection<Ballot> ballots;
+	private int numBallots;
 
 	/**
 	 * Current election run-off round. Round 1 is the initial state, in which no
@@ -40,18 +64,28 @@ public class Election {
 	private int round = 0;
 
 	/**
-	 * Compare first by votes, then by name.
+	 * Where to record the state of each round, or null if rounds are not
+	 * checkpointed.
 	 */
-	private Comparator<Candidate> voteComparator = new Comparator<>() {
-		@Override
-		public int compare(Candidate o1, Candidate o2) {
-			if (o1.votes < o2.votes)
-				return 1;
-			if (o1.votes > o2.votes)
-				return -1;
-			return o1.name.compareTo(o2.name);
-		}
-	};
+	private CheckpointWriter checkpoint = null;
+
+	/**
+	 * Where to record the path of each ballot through the rounds, or null if
+	 * paths are not recorded.
+	 */
+	private AuditTrail audit = null;
+
+	/**
+	 * Where to record the tallies of each unit in each round, or null if they are
+	 * not recorded.
+	 */
+	private Rollup rollup = null;
+
+	/**
+	 * The place this election is computing, as recorded in the audit trail and
+	 * the rollup.
+	 */
+	private int place = 1;
 
 	/**
 	 * Creates new Election instance to carry out an election. Initializes all
@@ -67,12 +101,34 @@ public class Election {
 	 *                      candidateSet
 	 */
 	public Election(Set<Candidate> candidateSet, Collection<Ballot> ballots) throws RCVException {
+		this(candidateSet, ballots, 1);
+	}
+
+	/**
+	 * Creates new Election instance starting in the given round. This is used to
+	 * resume an election from a checkpoint: the candidateSet must consist of the
+	 * candidates active in that round, and the ballots must contain only those
+	 * candidates.
+	 * 
+	 * @param candidateSet the set of candidates active in the given round
+	 * @param ballots      the ballots as of the given round
+	 * @param round        the round number, at least 1
+	 * @throws RCVException if two ballots have the same ID number
+	 * @throws RCVException if a ballot contains a candidate not in the given
+	 *                      candidateSet
+	 */
+	Election(Set<Candidate> candidateSet, Collection<Ballot> ballots, int round) throws RCVException {
 		if (candidateSet == null)
 			throw new IllegalArgumentException("null candidates");
 		if (ballots == null)
 			throw new IllegalArgumentException("null ballots");
-		this.candidates = new ArrayList<>(candidateSet);
-		this.ballots = new ArrayList<>();
+		this.candidates = candidateSet.toArray(new Candidate[candidateSet.size()]);
+		this.numCandidates = candidates.length;
+		Arrays.sort(candidates, (c1, c2) -> c1.name.compareTo(c2.name));
+		this.ranks = new int[numCandidates];
+		for (int i = 0; i < numCandidates; i++)
+			ranks[i] = i;
+		this.ballots = new Ballot[ballots.size()];
 		Set<Integer> idSet = new HashSet<>();
 		for (Ballot ballot : ballots) {
 			if (!idSet.add(ballot.id))
@@ -81,10 +137,63 @@ public class Election {
 				if (!candidateSet.contains(c))
 					throw new RCVException("Ballot entry " + c + " does not occur in candidate list");
 			}
-			this.ballots.add(ballot.duplicate());
+			this.ballots[numBallots++] = ballot.duplicate();
 		}
 		computeAndSort();
-		round = 1;
+		this.round = round;
+	}
+
+	/**
+	 * Sets the writer used to record the state of each round, and the outcome,
+	 * when this election is executed.
+	 * 
+	 * @param checkpoint the checkpoint writer, or null for no checkpointing
+	 */
+	void setCheckpointWriter(CheckpointWriter checkpoint) {
+		this.checkpoint = checkpoint;
+	}
+
+	/**
+	 * Sets the audit trail used to record, in each round, the candidate each
+	 * ballot counts toward, and the round in which it becomes exhausted.
+	 * 
+	 * @param audit the audit trail, or null for no recording
+	 * @param place the place this election is computing
+	 */
+	void setAuditTrail(AuditTrail audit, int place) {
+		this.audit = audit;
+		this.place = place;
+		if (audit != null) {
+			for (int i = 0; i < numBallots; i++)
+				ballots[i].slot = audit.slotOf(ballots[i].id);
+		}
+	}
+
+	/**
+	 * Sets the rollup used to record the tallies of each unit of ballots in each
+	 * round.
+	 * 
+	 * @param rollup the rollup, or null for no recording
+	 * @param place  the place this election is computing
+	 */
+	void setRollup(Rollup rollup, int place) {
+		this.rollup = rollup;
+		this.place = place;
+		if (rollup != null) {
+			for (int i = 0; i < numBallots; i++)
+				ballots[i].units = rollup.unitsOf(ballots[i].id);
+		}
+	}
+
+	/**
+	 * Records the current top entry of every active ballot in the audit trail.
+	 * This is only needed in the first round; after that, only the ballots whose
+	 * top entry is eliminated are recorded, by
+	 * {@link #removeCandidatesAtOrBelow(int)}.
+	 */
+	private void recordTops() {
+		for (int i = 0; i < numBallots; i++)
+			audit.record(ballots[i].slot, place, round, ballots[i].getTop());
 	}
 
 	/**
@@ -94,72 +203,105 @@ public class Election {
 	 */
 	public void printState(PrintStream out) {
 		out.println("Round " + round + ":");
-		for (Candidate c : candidates)
-			out.println(c);
+		for (int i = 0; i < numCandidates; i++)
+			out.println(candidates[i]);
 	}
 
 	/**
 	 * Computes the current vote totals for each candidate, based on the current
 	 * ballots. Then sorts the candidates from highest to lowest vote total (ties
-	 * are broken by alphabetical order of names).
+	 * are broken by alphabetical order of names). The sort is an in-place
+	 * insertion sort, which is fast when the order changes little from one round
+	 * to the next.
 	 */
 	private void computeAndSort() {
-		for (Candidate c : this.candidates)
-			c.votes = 0;
-		for (Ballot ballot : ballots) {
-			if (!ballot.entries.isEmpty())
-				ballot.entries.getFirst().votes++;
+		for (int i = 0; i < numCandidates; i++)
+			candidates[i].votes = 0;
+		for (int i = 0; i < numBallots; i++) {
+			Candidate top = ballots[i].getTop();
+			if (top != null)
+				top.votes++;
+		}
+		for (int i = 1; i < numCandidates; i++) {
+			Candidate c = candidates[i];
+			int rank = ranks[i], j = i;
+			while (j > 0 && (c.votes > candidates[j - 1].votes
+					|| (c.votes == candidates[j - 1].votes && rank < ranks[j - 1]))) {
+				candidates[j] = candidates[j - 1];
+				ranks[j] = ranks[j - 1];
+				j--;
+			}
+			candidates[j] = c;
+			ranks[j] = rank;
 		}
-		this.candidates.sort(voteComparator);
 	}
 
 	/**
 	 * Removes all candidates with votes less than or equal to bound from both the
 	 * candidate list and all ballots. Then removes any ballots which have become
-	 * empty.
+	 * empty. The new top entry of each ballot whose top entry was removed is
+	 * recorded in the audit trail, as of the next round.
 	 * 
 	 * @param bound upper bound on the votes of candidates to remove
 	 */
 	private void removeCandidatesAtOrBelow(int bound) {
-		while (!candidates.isEmpty() && candidates.getLast().votes <= bound)
-			candidates.removeLast();
-		for (Ballot ballot : ballots)
+		while (numCandidates > 0 && candidates[numCandidates - 1].votes <= bound)
+			candidates[--numCandidates] = null;
+		int n = 0;
+		for (int i = 0; i < numBallots; i++) {
+			Ballot ballot = ballots[i];
+			Candidate top = ballot.getTop();
+			boolean moved = top != null && top.votes <= bound;
 			ballot.removeEntriesAtOrBelow(bound);
-		// remove empty ballots...
-		Predicate<Ballot> filter = new Predicate<>() {
-			@Override
-			public boolean test(Ballot t) {
-				return t.entries.isEmpty();
-			}
-		};
-		ballots.removeIf(filter);
+			if (!ballot.entries.isEmpty())
+				ballots[n++] = ballot;
+			if (moved && audit != null)
+				audit.record(ballot.slot, place, round + 1, ballot.getTop());
+		}
+		for (int i = n; i < numBallots; i++)
+			ballots[i] = null;
+		numBallots = n;
 	}
 
 	/**
 	 * Executes the election by iterating through the rounds, updating the
 	 * candidates and ballots. Stops as soon as a winner is determined, or the well
-	 * runs dry. Prints all information to out.
+	 * runs dry. Prints all information to out, unless out is null.
 	 * 
-	 * @param out stream to which to print
+	 * @param out stream to which to print, or null to print nothing
 	 * @return the winner, or null if there is none
 	 */
 	public Candidate execute(PrintStream out) {
+		if (audit != null)
+			recordTops();
 		while (true) {
-			printState(out);
-			if (candidates.isEmpty()) {
-				out.println("No active candidates.   Election failed.");
+			if (out != null)
+				printState(out);
+			if (checkpoint != null)
+				checkpoint.round(round, candidates, numCandidates);
+			if (rollup != null)
+				rollup.record(place, round, candidates, numCandidates, ballots, numBallots);
+			if (numCandidates == 0) {
+				if (out != null)
+					out.println("No active candidates.   Election failed.");
+				if (checkpoint != null)
+					checkpoint.failed();
 				return null;
 			}
-			Candidate top = candidates.getFirst();
-			if (2 * top.votes > ballots.size()) {
-				out.println("\nWinner: " + top);
+			Candidate top = candidates[0];
+			if (2 * top.votes > numBallots) {
+				if (out != null)
+					out.println("\nWinner: " + top);
+				if (checkpoint != null)
+					checkpoint.winner(top);
 				return top;
 			}
-			int lowScore = candidates.getLast().votes;
+			int lowScore = candidates[numCandidates - 1].votes;
 			removeCandidatesAtOrBelow(lowScore);
 			computeAndSort();
 			round++;
-			out.println();
+			if (out != null)
+				out.println();
 		}
 	}
 }
@@ -1,16 +1,22 @@
 package edu.udel.cis.vsl.rcv;
 
 import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileReader;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.HexFormat;
 import java.util.Map;
 import java.util.Set;
 
@@ -53,6 +59,49 @@ public class RCV {
 	 */
 	private Collection<Ballot> ballots;
 
+	/**
+	 * Cache of complete results, keyed by the fingerprint of the inputs, or null
+	 * if results are not cached.
+	 */
+	private ResultCache cache = null;
+
+	/**
+	 * The numbering of the candidates used in checkpoints, audit trails and
+	 * rollups. It belongs to this instance, so other instances sharing some of the
+	 * same candidates do not affect it.
+	 */
+	private CandidateIndex index;
+
+	/**
+	 * The file in which to record the rounds of the next execution, or null if
+	 * rounds are not checkpointed.
+	 */
+	private File checkpointFile = null;
+
+	/**
+	 * The checkpoint from which to resume the next execution, or null if it
+	 * starts from the beginning.
+	 */
+	private Checkpoint resumeFrom = null;
+
+	/**
+	 * Where to record the path of every ballot during the next execution, or null
+	 * if paths are not recorded.
+	 */
+	private AuditTrail audit = null;
+
+	/**
+	 * Where to record the tallies of each unit during the next execution, or null
+	 * if they are not recorded.
+	 */
+	private Rollup rollup = null;
+
+	/**
+	 * The surplus transfer rule, if the seats are filled by a single transferable
+	 * vote election, or null if places are found by a sequence of RCV elections.
+	 */
+	private STVElection.TransferRule transferRule = null;
+
 	/**
 	 * Constructs new instance based on given collections. The collections are used
 	 * directly, nothing is copied.
@@ -63,6 +112,7 @@ public class RCV {
 	public RCV(Set<Candidate> candidates, Collection<Ballot> ballots) {
 		this.candidates = candidates;
 		this.ballots = ballots;
+		this.index = new CandidateIndex(candidates);
 	}
 
 	/**
@@ -73,7 +123,9 @@ public class RCV {
 	 *                      lines are ignored)
 	 * @param ballotFiles   one file for each ballot; each ballot contains an
 	 *                      ordered list of candidate names, from most to least
-	 *                      preferred
+	 *                      preferred. The directories containing a ballot file
+	 *                      below the directory of the candidate file are its
+	 *                      group (see {@link Ballot#group}).
 	 * @return the new RCV instance, initialized to round 1
 	 * @throws FileNotFoundException if one of the files is not found
 	 * @throws IOException           if an error occurs reading one of the files
@@ -99,8 +151,10 @@ public class RCV {
 		br.close();
 		int id = 1;
 		ArrayList<Ballot> ballots = new ArrayList<>();
+		File root = candidateFile.getAbsoluteFile().getParentFile();
 		for (File file : ballotFiles) {
 			Ballot ballot = Ballot.parse(candidateMap, id, file);
+			ballot.group = Ballot.groupOf(file, root);
 			ballots.add(ballot);
 			id++;
 		}
@@ -155,6 +209,129 @@ public class RCV {
 		return parse(candidateFilename, ballotFilenames);
 	}
 
+	/**
+	 * Sets the cache used to look up and store complete results. If non-null,
+	 * {@link #execute(PrintStream, int)} prints the fingerprint of the inputs and
+	 * replays the cached result when there is one.
+	 * 
+	 * @param cache the result cache, or null to always run the elections
+	 */
+	public void setResultCache(ResultCache cache) {
+		this.cache = cache;
+	}
+
+	/**
+	 * Selects how {@link #execute(PrintStream, int)} fills the places. If rule is
+	 * null (the default), a sequence of RCV elections is run, each one with the
+	 * previous winners removed. Otherwise all places are filled as seats in a
+	 * single {@link STVElection} using the given surplus transfer rule.
+	 * Checkpoints, audit trails and rollups are only recorded for RCV elections;
+	 * {@link #execute(PrintStream, int)} throws an exception if one is requested
+	 * together with a transfer rule.
+	 * 
+	 * @param rule the surplus transfer rule, or null
+	 */
+	public void setTransferRule(STVElection.TransferRule rule) {
+		this.transferRule = rule;
+	}
+
+	/**
+	 * Arranges for the next call to {@link #execute(PrintStream, int)} to record
+	 * a checkpoint of every round in the given file. If resume is true and the
+	 * file exists, that execution first replays the rounds recorded in the file,
+	 * then continues from the last recorded round; its output and result are the
+	 * same as those of an uninterrupted execution. A file with no fingerprint,
+	 * e.g., an empty one, is not resumed from. The file is not opened for writing
+	 * (or truncated) until the elections are run; it is left untouched if a
+	 * cached result is used instead.
+	 * 
+	 * @param file   the checkpoint file
+	 * @param resume whether to resume from the checkpoint in file, if it exists
+	 * @throws IOException  if the file cannot be read
+	 * @throws RCVException if the file exists and resume is true, but the file is
+	 *                      not a well-formed checkpoint
+	 */
+	public void setCheckpoint(File file, boolean resume) throws IOException, RCVException {
+		this.resumeFrom = resume && file.exists() ? Checkpoint.load(file, index.size()) : null;
+		this.checkpointFile = file;
+	}
+
+	/**
+	 * Creates an audit trail which records the path of every ballot through the
+	 * rounds of the next call to {@link #execute(PrintStream, int)}. That call
+	 * runs the elections even if a cached result is available. It cannot resume
+	 * from a checkpoint, since the replayed rounds would be missing from the
+	 * trail.
+	 * 
+	 * @return the new audit trail, which is empty until the next execution
+	 */
+	public AuditTrail startAuditTrail() {
+		audit = new AuditTrail(ballots, index);
+		return audit;
+	}
+
+	/**
+	 * Creates a rollup which records the tallies of every unit of ballots (see
+	 * {@link Ballot#group}) in every round of the next call to
+	 * {@link #execute(PrintStream, int)}. As with {@link #startAuditTrail()},
+	 * that call runs the elections even if a cached result is available, and
+	 * cannot resume from a checkpoint.
+	 * 
+	 * @return the new rollup, which is empty until the next execution
+	 */
+	public Rollup startRollup() {
+		rollup = new Rollup(ballots, index);
+		return rollup;
+	}
+
+	private static void update(MessageDigest md, String s) {
+		byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+		int n = bytes.length;
+		md.update(new byte[] { (byte) (n >>> 24), (byte) (n >>> 16), (byte) (n >>> 8), (byte) n });
+		md.update(bytes);
+	}
+
+	/**
+	 * Computes a canonical fingerprint of the inputs to
+	 * {@link #execute(PrintStream, int)}: the set of candidate names, the multiset
+	 * of ballots, and the options (the number of places, and the transfer rule if
+	 * single transferable vote is used). The fingerprint does not depend on the order in
+	 * which candidates or ballots were given, nor on the ballot ID numbers.
+	 * 
+	 * @param numPlaces the number of places to compute
+	 * @return the SHA-256 digest of the canonical form, as a hexadecimal string
+	 */
+	public String fingerprint(int numPlaces) {
+		MessageDigest md;
+		try {
+			md = MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+		ArrayList<String> names = new ArrayList<>();
+		for (Candidate c : candidates)
+			names.add(c.name);
+		names.sort(null);
+		update(md, "candidates " + names.size());
+		for (String name : names)
+			update(md, name);
+		ArrayList<String> encodings = new ArrayList<>();
+		for (Ballot ballot : ballots) {
+			StringBuilder sb = new StringBuilder();
+			for (Candidate c : ballot.entries)
+				sb.append(c.name.length()).append(':').append(c.name);
+			encodings.add(sb.toString());
+		}
+		encodings.sort(null);
+		update(md, "ballots " + encodings.size());
+		for (String encoding : encodings)
+			update(md, encoding);
+		update(md, "places " + numPlaces);
+		if (transferRule != null)
+			update(md, "stv " + transferRule);
+		return HexFormat.of().formatHex(md.digest());
+	}
+
 	/**
 	 * Prints usage information to given stream.
 	 * 
@@ -176,12 +353,30 @@ public class RCV {
 		out.println("  root of ballot filenames, use with -n (default: null)");
 		out.println("-n N");
 		out.println("  ballot filenames are R1.txt, R2.txt, ..., RN.txt (default: 0)");
+		out.println("-c DIR");
+		out.println("  cache results in directory DIR, keyed by input fingerprint (default: null)");
+		out.println("-k FILE");
+		out.println("  write a checkpoint of every round to FILE (default: null)");
+		out.println("-resume");
+		out.println("  resume from the checkpoint FILE given with -k, if it exists");
+		out.println("-a FILE");
+		out.println("  write the path of every ballot through the rounds to FILE (default: null)");
+		out.println("-s RULE");
+		out.println("  fill M seats in one single transferable vote election, with surplus");
+		out.println("  transfer rule RULE: gregory or parcel (default: M separate elections)");
+		out.println("-u FILE");
+		out.println("  write the tallies of every directory of ballot files in every round to FILE");
+		out.println("  (default: null)");
 	}
 
 	/**
 	 * Executes numPlaces complete elections. After the first election, the winner
 	 * is removed, then the second election is run to determine the second place
-	 * winner. This proceeds numPlaces times.
+	 * winner. This proceeds numPlaces times. If a transfer rule has been set (see
+	 * {@link #setTransferRule(STVElection.TransferRule)}), a single STV election
+	 * fills numPlaces seats instead. If a result cache has been set, the
+	 * fingerprint of the inputs is printed first, and a cached result with that
+	 * fingerprint is replayed instead of running the elections.
 	 * 
 	 * @param out       where to print the output
 	 * @param numPlaces the number of places to compute, same as the number of
@@ -189,28 +384,223 @@ public class RCV {
 	 * @return the winners, in order: first place, second place, etc. This list may
 	 *         have length less than numPlaces if any election fails to produce a
 	 *         winner.
-	 * @throws RCVException if a ballot contains a name not in the candidate set
+	 * @throws RCVException if a ballot contains a name not in the candidate set,
+	 *                      the checkpoint to resume from does not match the
+	 *                      inputs, an audit trail or rollup was started and a
+	 *                      checkpoint is resumed, or a checkpoint, audit trail or
+	 *                      rollup was requested together with a transfer rule
 	 */
 	public ArrayList<Candidate> execute(PrintStream out, int numPlaces) throws RCVException {
+		if (cache == null)
+			return tabulate(out, numPlaces);
+		String fingerprint = fingerprint(numPlaces);
+		ResultCache.Entry entry = null;
+		if (audit == null && rollup == null) {
+			try {
+				entry = cache.get(fingerprint);
+			} catch (IOException e) {
+				System.err.println("Warning: could not read result cache: " + e.getMessage());
+			}
+		}
+		if (entry != null) {
+			Map<String, Candidate> candidateMap = new HashMap<>();
+			for (Candidate c : candidates)
+				candidateMap.put(c.name, c);
+			ArrayList<Candidate> winners = new ArrayList<>();
+			for (String name : entry.winners)
+				winners.add(candidateMap.get(name));
+			if (!winners.contains(null)) {
+				// the winners carry the same votes as after a computed run...
+				for (int i = 0; i < winners.size(); i++)
+					winners.get(i).votes = entry.votes[i];
+				out.println("Fingerprint: " + fingerprint + " (cached result)\n");
+				out.print(entry.output);
+				return winners;
+			}
+		}
+		out.println("Fingerprint: " + fingerprint + "\n");
+		// print the output as it is produced, and capture it for the cache...
+		ByteArrayOutputStream buf = new ByteArrayOutputStream();
+		PrintStream tee = new PrintStream(new OutputStream() {
+			@Override
+			public void write(int b) {
+				buf.write(b);
+				out.write(b);
+			}
+
+			@Override
+			public void write(byte[] b, int off, int len) {
+				buf.write(b, off, len);
+				out.write(b, off, len);
+			}
+
+			@Override
+			public void flush() {
+				out.flush();
+			}
+		}, true, out.charset());
+		ArrayList<Candidate> winners = tabulate(tee, numPlaces);
+		tee.flush();
+		String output = buf.toString(out.charset());
+		try {
+			cache.put(fingerprint, winners, output);
+		} catch (IOException e) {
+			System.err.println("Warning: could not write result cache: " + e.getMessage());
+		}
+		return winners;
+	}
+
+	/**
+	 * Runs the elections for {@link #execute(PrintStream, int)}, without
+	 * consulting the cache. Records and resumes from a checkpoint, if one was set.
+	 */
+	private ArrayList<Candidate> tabulate(PrintStream out, int numPlaces) throws RCVException {
 		Set<Candidate> cs = new HashSet<>(candidates);
 		Collection<Ballot> bs = new ArrayList<>();
 		ArrayList<Candidate> winners = new ArrayList<>();
+		CheckpointWriter writer = null;
+		File file = checkpointFile;
+		Checkpoint previous = resumeFrom;
+		AuditTrail trail = audit;
+		Rollup unitTallies = rollup;
+
+		checkpointFile = null;
+		resumeFrom = null;
+		audit = null;
+		rollup = null;
+		if (trail != null && previous != null)
+			throw new RCVException("Cannot record an audit trail when resuming from a checkpoint");
+		if (unitTallies != null && previous != null)
+			throw new RCVException("Cannot record a rollup when resuming from a checkpoint");
+		if (transferRule != null && (file != null || trail != null || unitTallies != null))
+			throw new RCVException(
+					"Cannot record a checkpoint, audit trail or rollup of a single transferable vote election");
+		if (file != null) {
+			String fingerprint = fingerprint(numPlaces);
+			if (previous != null && !previous.fingerprint.equals(fingerprint))
+				throw new RCVException(
+						"Checkpoint fingerprint " + previous.fingerprint + " does not match inputs " + fingerprint);
+			try {
+				writer = new CheckpointWriter(file, index, previous == null ? 0 : previous.length);
+			} catch (IOException e) {
+				System.err.println("Warning: could not open checkpoint " + file + ": " + e.getMessage());
+			}
+			if (writer != null && previous == null)
+				writer.fingerprint(fingerprint);
+		}
 		for (Ballot ballot : ballots)
 			bs.add(ballot.duplicate());
-		for (int i = 0; i < numPlaces; i++) {
-			out.println("Computing winner in place " + (i + 1) + ":\n");
-			Election el = new Election(cs, bs);
-			Candidate winner = el.execute(out);
-			if (winner == null)
-				break;
-			winners.add(winner);
-			cs.remove(winner);
-			for (Ballot ballot : bs)
-				ballot.remove(winner);
+		try {
+			if (transferRule != null) {
+				out.println("Electing " + numPlaces + " seats by single transferable vote:\n");
+				return new STVElection(cs, bs, numPlaces, transferRule).execute(out);
+			}
+			for (int i = 0; i < numPlaces; i++) {
+				out.println("Computing winner in place " + (i + 1) + ":\n");
+				Checkpoint.Place recorded = previous == null || i >= previous.places.size() ? null
+						: previous.places.get(i);
+				Candidate winner;
+				if (recorded != null && recorded.finished) {
+					winner = replay(out, recorded);
+				} else {
+					Election el;
+					if (recorded == null || recorded.rounds.isEmpty()) {
+						if (writer != null && recorded == null)
+							writer.place(i + 1);
+						el = new Election(cs, bs);
+					} else {
+						el = resume(out, recorded, cs, bs);
+					}
+					el.setCheckpointWriter(writer);
+					el.setAuditTrail(trail, i + 1);
+					el.setRollup(unitTallies, i + 1);
+					winner = el.execute(out);
+				}
+				if (winner == null)
+					break;
+				winners.add(winner);
+				cs.remove(winner);
+				for (Ballot ballot : bs)
+					ballot.remove(winner);
+			}
+		} finally {
+			if (writer != null) {
+				try {
+					writer.close();
+				} catch (IOException e) {
+					System.err.println("Warning: " + e.getMessage());
+				}
+			}
 		}
 		return winners;
 	}
 
+	/**
+	 * Prints all rounds of a finished election recorded in a checkpoint, in the
+	 * same format as {@link Election#execute(PrintStream)}.
+	 * 
+	 * @param out      stream to which to print
+	 * @param recorded the recorded election
+	 * @return the winner, or null if the election failed
+	 */
+	private Candidate replay(PrintStream out, Checkpoint.Place recorded) {
+		int numRounds = recorded.rounds.size();
+
+		for (int r = 0; r < numRounds; r++) {
+			if (r > 0)
+				out.println();
+			Checkpoint.printRound(out, r + 1, recorded.rounds.get(r), index);
+		}
+		if (recorded.winner < 0) {
+			out.println("No active candidates.   Election failed.");
+			return null;
+		}
+		Candidate winner = index.get(recorded.winner);
+		winner.votes = recorded.rounds.getLast()[1];
+		out.println("\nWinner: " + winner);
+		return winner;
+	}
+
+	/**
+	 * Prints all but the last round of an unfinished election recorded in a
+	 * checkpoint, then creates an Election in the state of the last recorded
+	 * round. Executing that Election prints the remaining rounds.
+	 * 
+	 * @param out      stream to which to print
+	 * @param recorded the recorded election
+	 * @param cs       the candidates at the start of the election
+	 * @param bs       the ballots at the start of the election
+	 * @return the Election, in the last recorded round
+	 * @throws RCVException if the checkpoint names a candidate not in cs
+	 */
+	private Election resume(PrintStream out, Checkpoint.Place recorded, Set<Candidate> cs, Collection<Ballot> bs)
+			throws RCVException {
+		int numRounds = recorded.rounds.size();
+
+		for (int r = 0; r < numRounds - 1; r++) {
+			Checkpoint.printRound(out, r + 1, recorded.rounds.get(r), index);
+			out.println();
+		}
+		int[] state = recorded.rounds.getLast();
+		Set<Candidate> active = new HashSet<>();
+		for (int i = 0; i < state.length; i += 2) {
+			Candidate c = index.get(state[i]);
+			if (!cs.contains(c))
+				throw new RCVException("Checkpoint contains inactive candidate " + c.name);
+			active.add(c);
+		}
+		// the ballots of round r contain exactly the active candidates; empty
+		// ballots are removed in every round after the first...
+		Collection<Ballot> activeBallots = new ArrayList<>();
+		for (Ballot ballot : bs) {
+			Ballot copy = ballot.duplicate();
+			copy.entries.removeIf(c -> !active.contains(c));
+			if (numRounds == 1 || !copy.entries.isEmpty())
+				activeBallots.add(copy);
+		}
+		return new Election(active, activeBallots, numRounds);
+	}
+
 	private static void clerr(String msg) {
 		System.err.println("Command line error: " + msg);
 		usage(System.out);
@@ -229,6 +619,12 @@ public class RCV {
 		int m = 1; // number of places to compute
 		int n = 0; // number of ballots if ballot filename pattern is used
 		String root = null; // root of ballot filename (optional)
+		String cacheDir = null; // result cache directory (optional)
+		String checkpointFilename = null; // checkpoint file (optional)
+		boolean resume = false; // resume from checkpoint?
+		String auditFilename = null; // audit trail file (optional)
+		String rollupFilename = null; // unit tallies file (optional)
+		STVElection.TransferRule rule = null; // single transferable vote (optional)
 
 		try {
 			for (int i = 0; i < narg; i++) {
@@ -266,6 +662,39 @@ public class RCV {
 						clerr("expected string after -r");
 					arg = args[i];
 					root = arg;
+				} else if (arg.equals("-c")) {
+					i++;
+					if (i == narg)
+						clerr("expected directory after -c");
+					cacheDir = args[i];
+				} else if (arg.equals("-k")) {
+					i++;
+					if (i == narg)
+						clerr("expected filename after -k");
+					checkpointFilename = args[i];
+				} else if (arg.equals("-resume")) {
+					resume = true;
+				} else if (arg.equals("-a")) {
+					i++;
+					if (i == narg)
+						clerr("expected filename after -a");
+					auditFilename = args[i];
+				} else if (arg.equals("-s")) {
+					i++;
+					if (i == narg)
+						clerr("expected transfer rule after -s");
+					arg = args[i];
+					if (arg.equals("gregory"))
+						rule = STVElection.TransferRule.GREGORY;
+					else if (arg.equals("parcel"))
+						rule = STVElection.TransferRule.LAST_PARCEL;
+					else
+						clerr("expected gregory or parcel after -s but saw " + arg);
+				} else if (arg.equals("-u")) {
+					i++;
+					if (i == narg)
+						clerr("expected filename after -u");
+					rollupFilename = args[i];
 				} else {
 					if (candidateFilename == null) {
 						candidateFilename = arg;
@@ -281,10 +710,27 @@ public class RCV {
 					clerr("must specify root if using -n");
 				ballotFilenameList.addAll(Arrays.asList(ballotFilenames(root, n)));
 			}
+			if (resume && checkpointFilename == null)
+				clerr("must specify checkpoint file with -k if using -resume");
+			if (resume && (auditFilename != null || rollupFilename != null))
+				clerr("-a and -u cannot be used with -resume");
+			if (rule != null && (checkpointFilename != null || auditFilename != null || rollupFilename != null))
+				clerr("-s cannot be used with -k, -a, or -u");
 			int numBallots = ballotFilenameList.size();
 			String[] ballotFilenames = ballotFilenameList.toArray(new String[numBallots]);
 			RCV rcv = RCV.parse(candidateFilename, ballotFilenames);
+			rcv.setTransferRule(rule);
+			if (cacheDir != null)
+				rcv.setResultCache(new ResultCache(new File(cacheDir)));
+			if (checkpointFilename != null)
+				rcv.setCheckpoint(new File(checkpointFilename), resume);
+			AuditTrail audit = auditFilename == null ? null : rcv.startAuditTrail();
+			Rollup rollup = rollupFilename == null ? null : rcv.startRollup();
 			rcv.execute(System.out, m);
+			if (audit != null)
+				audit.export(new File(auditFilename));
+			if (rollup != null)
+				rollup.export(new File(rollupFilename));
 		} catch (RCVException e) {
 			System.err.println(e.getMessage());
 			System.exit(1);
@@ -0,0 +1,254 @@
+package edu.udel.cis.vsl.rcv;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+
+/**
+ * A bounded cache of complete tabulation results, stored in a local directory.
+ * Each entry is keyed by the fingerprint of the election inputs (see
+ * {@link RCV#fingerprint(int)}) and holds the winners together with the full
+ * round-by-round output that was printed when the result was computed. When
+ * the number of entries exceeds the capacity, the least recently used entries
+ * are deleted. The order of use is kept explicitly in an index file in the
+ * directory, which lists the fingerprints of the entries from least to most
+ * recently used; it does not depend on file modification times, whose
+ * resolution may be too coarse to tell successive accesses apart. Entries and
+ * the index are written to uniquely named temporary files and then moved into
+ * place atomically, so several processes may share the directory.
+ */
+public class ResultCache {
+
+	/**
+	 * Default maximum number of entries kept in the cache directory.
+	 */
+	public final static int DEFAULT_CAPACITY = 100;
+
+	/**
+	 * Suffix of the file names of the cache entries.
+	 */
+	private final static String SUFFIX = ".rcv";
+
+	/**
+	 * Name of the file listing the fingerprints of the entries, from least to most
+	 * recently used.
+	 */
+	private final static String INDEX = "index";
+
+	/**
+	 * A cached result: the names of the winners, in order, their votes, and the
+	 * output that was printed while computing them.
+	 */
+	public static class Entry {
+
+		/**
+		 * Names of the winners, in order: first place, second place, etc.
+		 */
+		List<String> winners;
+
+		/**
+		 * The votes of each winner when the result was computed, in the same order
+		 * as {@link #winners}.
+		 */
+		int[] votes;
+
+		/**
+		 * The complete round-by-round output.
+		 */
+		String output;
+
+		Entry(List<String> winners, int[] votes, String output) {
+			this.winners = winners;
+			this.votes = votes;
+			this.output = output;
+		}
+	}
+
+	/**
+	 * The directory holding the cache entries, one file per entry.
+	 */
+	private File dir;
+
+	/**
+	 * Maximum number of entries.
+	 */
+	private int capacity;
+
+	/**
+	 * Creates a new cache backed by the given directory, which is created if it
+	 * does not exist. Entries already in the directory are used.
+	 *
+	 * @param dir      the cache directory
+	 * @param capacity maximum number of entries, at least 1
+	 * @throws IOException if the directory cannot be created
+	 */
+	public ResultCache(File dir, int capacity) throws IOException {
+		if (capacity < 1)
+			throw new IllegalArgumentException("capacity must be at least 1: " + capacity);
+		if (!dir.isDirectory() && !dir.mkdirs())
+			throw new IOException("Could not create cache directory " + dir);
+		this.dir = dir;
+		this.capacity = capacity;
+	}
+
+	public ResultCache(File dir) throws IOException {
+		this(dir, DEFAULT_CAPACITY);
+	}
+
+	private File entryFile(String fingerprint) {
+		return new File(dir, fingerprint + SUFFIX);
+	}
+
+	/**
+	 * Reads the order of use of the entries, least recently used first. Entries
+	 * missing from the index, e.g., because it was lost, are taken to be the least
+	 * recently used; names in the index with no entry are dropped.
+	 *
+	 * @return the fingerprints of the entries, least recently used first
+	 * @throws IOException if the index exists but cannot be read
+	 */
+	private LinkedHashSet<String> readIndex() throws IOException {
+		File index = new File(dir, INDEX);
+		LinkedHashSet<String> result = new LinkedHashSet<>();
+		String[] names = dir.list((d, name) -> name.endsWith(SUFFIX));
+		if (names != null) {
+			Arrays.sort(names);
+			for (String name : names) {
+				String fingerprint = name.substring(0, name.length() - SUFFIX.length());
+				result.add(fingerprint);
+			}
+		}
+		if (index.isFile()) {
+			for (String fingerprint : Files.readAllLines(index.toPath(), StandardCharsets.UTF_8)) {
+				if (result.remove(fingerprint))
+					result.add(fingerprint);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Replaces the contents of a file in the cache directory atomically: the
+	 * content is written to a new temporary file, which is then moved over the
+	 * file.
+	 *
+	 * @param file    the file to replace
+	 * @param content the new contents
+	 * @throws IOException if the file cannot be written
+	 */
+	private void replace(File file, CharSequence content) throws IOException {
+		Path tmp = Files.createTempFile(dir.toPath(), file.getName(), ".tmp");
+		try {
+			Files.writeString(tmp, content, StandardCharsets.UTF_8);
+			Files.move(tmp, file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException e) {
+			Files.deleteIfExists(tmp);
+			throw new IOException("Could not write cache file " + file + ": " + e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * Replaces the index with the given order of use.
+	 *
+	 * @param order the fingerprints of the entries, least recently used first
+	 * @throws IOException if the index cannot be written
+	 */
+	private void writeIndex(LinkedHashSet<String> order) throws IOException {
+		StringBuilder sb = new StringBuilder();
+		for (String fingerprint : order)
+			sb.append(fingerprint).append('\n');
+		replace(new File(dir, INDEX), sb);
+	}
+
+	/**
+	 * Reads the order of use of the entries and moves the one with the given
+	 * fingerprint to the end, as the most recently used.
+	 */
+	private LinkedHashSet<String> touch(String fingerprint) throws IOException {
+		LinkedHashSet<String> order = readIndex();
+		order.remove(fingerprint);
+		order.add(fingerprint);
+		return order;
+	}
+
+	/**
+	 * Looks up the result with the given fingerprint. A hit marks the entry as
+	 * most recently used, if the index can be written; a hit is returned even if
+	 * it cannot, e.g., because the directory is read-only.
+	 *
+	 * @param fingerprint the fingerprint of the election inputs
+	 * @return the cached entry, or null if there is none
+	 * @throws IOException if the entry exists but cannot be read
+	 */
+	public Entry get(String fingerprint) throws IOException {
+		File file = entryFile(fingerprint);
+		if (!file.isFile())
+			return null;
+		String content = Files.readString(file.toPath(), StandardCharsets.UTF_8);
+		// first line is number of winners, followed by one line per winner with
+		// the votes and the name, separated by a space...
+		int pos = content.indexOf('\n');
+		if (pos < 0)
+			throw new IOException("Malformed cache entry " + file);
+		int numWinners;
+		try {
+			numWinners = Integer.parseInt(content.substring(0, pos));
+		} catch (NumberFormatException e) {
+			throw new IOException("Malformed cache entry " + file);
+		}
+		List<String> winners = new ArrayList<>();
+		int[] votes = new int[numWinners];
+		for (int i = 0; i < numWinners; i++) {
+			int next = content.indexOf('\n', pos + 1);
+			int space = content.indexOf(' ', pos + 1);
+			if (next < 0 || space < 0 || space > next)
+				throw new IOException("Malformed cache entry " + file);
+			try {
+				votes[i] = Integer.parseInt(content.substring(pos + 1, space));
+			} catch (NumberFormatException e) {
+				throw new IOException("Malformed cache entry " + file);
+			}
+			winners.add(content.substring(space + 1, next));
+			pos = next;
+		}
+		try {
+			writeIndex(touch(fingerprint));
+		} catch (IOException e) {
+			// the order of use is only a hint for eviction...
+		}
+		return new Entry(winners, votes, content.substring(pos + 1));
+	}
+
+	/**
+	 * Stores a result under the given fingerprint, then evicts the least recently
+	 * used entries if the capacity is exceeded.
+	 *
+	 * @param fingerprint the fingerprint of the election inputs
+	 * @param winners     the winners, in order, with the votes they won with
+	 * @param output      the complete output printed while computing the winners
+	 * @throws IOException if the entry cannot be written
+	 */
+	public void put(String fingerprint, List<Candidate> winners, String output) throws IOException {
+		StringBuilder sb = new StringBuilder();
+		sb.append(winners.size()).append('\n');
+		for (Candidate c : winners)
+			sb.append(c.votes).append(' ').append(c.name).append('\n');
+		sb.append(output);
+		replace(entryFile(fingerprint), sb);
+		LinkedHashSet<String> order = touch(fingerprint);
+		// evict the least recently used entries...
+		while (order.size() > capacity) {
+			String victim = order.iterator().next();
+			order.remove(victim);
+			entryFile(victim).delete();
+		}
+		writeIndex(order);
+	}
+}
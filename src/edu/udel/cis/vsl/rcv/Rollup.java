@@ -0,0 +1,228 @@
+package edu.udel.cis.vsl.rcv;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+/**
+ * <p>
+ * Round-by-round tallies of the elections run by
+ * {@link RCV#execute(PrintStream, int)}, broken down by unit. Each ballot may
+ * belong to a hierarchy of units, such as a district, a ward within the
+ * district, and a precinct within the ward (see {@link Ballot#group}). For
+ * every round, and every unit at every level of the hierarchy, the number of
+ * the unit's ballots counting toward each active candidate is recorded.
+ * </p>
+ *
+ * <p>
+ * The tallies for all units of a round are computed in a single parallel pass
+ * over the ballots; each thread accumulates into its own primitive array, and
+ * the arrays are summed when the threads are done.
+ * </p>
+ */
+public class Rollup {
+
+	/**
+	 * The tallies of one round.
+	 */
+	private static class Round {
+
+		int place;
+
+		int round;
+
+		/**
+		 * The indexes of the active candidates, in sorted order.
+		 */
+		int[] active;
+
+		/**
+		 * The tallies, indexed by unit * number of candidates + candidate index.
+		 */
+		int[] counts;
+
+		Round(int place, int round, int[] active, int[] counts) {
+			this.place = place;
+			this.round = round;
+			this.active = active;
+			this.counts = counts;
+		}
+	}
+
+	/**
+	 * The numbering of the candidates.
+	 */
+	private CandidateIndex index;
+
+	/**
+	 * The names of the units, sorted. A unit's name is the path of group names
+	 * leading to it, separated by "/". The index of a name in this list
+	 * identifies the unit.
+	 */
+	private List<String> units;
+
+	/**
+	 * Map from the name of a unit to its index in units.
+	 */
+	private Map<String, Integer> indexMap = new HashMap<>();
+
+	/**
+	 * The total number of ballots in each unit, indexed by unit.
+	 */
+	private int[] sizes;
+
+	/**
+	 * Map from ballot ID to the units containing the ballot, one per level.
+	 */
+	private Map<Integer, int[]> unitMap = new HashMap<>();
+
+	/**
+	 * The tallies of the rounds recorded so far, in order.
+	 */
+	private ArrayList<Round> rounds = new ArrayList<>();
+
+	/**
+	 * Creates new empty rollup for the given ballots. The units are determined
+	 * by the groups of the ballots.
+	 *
+	 * @param ballots the ballots
+	 * @param index   the numbering of the candidates
+	 */
+	Rollup(Collection<Ballot> ballots, CandidateIndex index) {
+		TreeSet<String> names = new TreeSet<>();
+
+		this.index = index;
+		for (Ballot ballot : ballots) {
+			if (ballot.group != null) {
+				for (int i = 1; i <= ballot.group.length; i++)
+					names.add(unitName(ballot.group, i));
+			}
+		}
+		this.units = new ArrayList<>(names);
+		this.sizes = new int[units.size()];
+		for (int i = 0; i < units.size(); i++)
+			indexMap.put(units.get(i), i);
+		for (Ballot ballot : ballots) {
+			int n = ballot.group == null ? 0 : ballot.group.length;
+			int[] path = n == 0 ? Ballot.NO_UNITS : new int[n];
+			for (int i = 0; i < n; i++) {
+				path[i] = indexMap.get(unitName(ballot.group, i + 1));
+				sizes[path[i]]++;
+			}
+			unitMap.put(ballot.id, path);
+		}
+	}
+
+	private static String unitName(String[] group, int length) {
+		return String.join("/", List.of(group).subList(0, length));
+	}
+
+	/**
+	 * Returns the units containing the ballot with the given ID, one per level,
+	 * outermost first.
+	 */
+	int[] unitsOf(int id) {
+		int[] result = unitMap.get(id);
+		return result == null ? Ballot.NO_UNITS : result;
+	}
+
+	/**
+	 * Tallies the current top entries of the ballots by unit and records the
+	 * result as the given round.
+	 *
+	 * @param place         the place being computed
+	 * @param round         the round number
+	 * @param candidates    the active candidates, in sorted order, in the first
+	 *                      numCandidates elements
+	 * @param numCandidates the number of active candidates
+	 * @param ballots       the active ballots, with their units assigned, in the
+	 *                      first numBallots elements
+	 * @param numBallots    the number of active ballots
+	 */
+	void record(int place, int round, Candidate[] candidates, int numCandidates, Ballot[] ballots,
+			int numBallots) {
+		int width = index.size();
+		int size = units.size() * width;
+		int[] counts = Arrays.stream(ballots, 0, numBallots).parallel().collect(() -> new int[size],
+				(tally, ballot) -> {
+					Candidate top = ballot.getTop();
+					if (top != null) {
+						for (int unit : ballot.units)
+							tally[unit * width + index.indexOf(top)]++;
+					}
+				}, (tally1, tally2) -> {
+					for (int i = 0; i < size; i++)
+						tally1[i] += tally2[i];
+				});
+		int[] active = new int[numCandidates];
+		for (int i = 0; i < numCandidates; i++)
+			active[i] = index.indexOf(candidates[i]);
+		rounds.add(new Round(place, round, active, counts));
+	}
+
+	/**
+	 * Returns the number of ballots of the named unit counting toward the given
+	 * candidate in the given round.
+	 *
+	 * @param place     the place
+	 * @param round     the round number
+	 * @param unit      the name of the unit, e.g., "district1/ward2"
+	 * @param candidate a candidate
+	 * @return the number of ballots, or -1 if the round or unit was not recorded
+	 */
+	public int tally(int place, int round, String unit, Candidate candidate) {
+		Integer u = indexMap.get(unit);
+		if (u == null)
+			return -1;
+		for (Round r : rounds) {
+			if (r.place == place && r.round == round)
+				return r.counts[u * index.size() + index.indexOf(candidate)];
+		}
+		return -1;
+	}
+
+	/**
+	 * Prints the tallies of every unit in every recorded round. For each unit, the
+	 * active candidates are listed in the order of the overall standings,
+	 * followed by the number of the unit's ballots that are exhausted.
+	 *
+	 * @param out stream to which to print
+	 */
+	public void print(PrintStream out) {
+		int width = index.size();
+
+		for (Round r : rounds) {
+			out.println("Place " + r.place + ", round " + r.round + ":");
+			for (int u = 0; u < units.size(); u++) {
+				int exhausted = sizes[u];
+				out.print(units.get(u) + ":");
+				for (int c : r.active) {
+					int count = r.counts[u * width + c];
+					out.print(" " + index.get(c).name + " (" + count + ")");
+					exhausted -= count;
+				}
+				out.println(" exhausted (" + exhausted + ")");
+			}
+			out.println();
+		}
+	}
+
+	/**
+	 * Writes the tallies to a file, in the format of {@link #print(PrintStream)}.
+	 *
+	 * @param file the file to write
+	 * @throws FileNotFoundException if the file cannot be opened for writing
+	 */
+	public void export(File file) throws FileNotFoundException {
+		PrintStream out = new PrintStream(file);
+		print(out);
+		out.close();
+	}
+}
@@ -0,0 +1,398 @@
+package edu.udel.cis.vsl.rcv;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * <p>
+ * An instance of this class models a single transferable vote (STV) election,
+ * used to fill several seats in one tabulation. Each ballot carries a weight
+ * (see {@link Ballot#weight}), initially one vote, and counts toward the most
+ * preferred of its candidates that is still continuing. Weights are fixed-point
+ * numbers, so all transfers use exact integer arithmetic.
+ * </p>
+ *
+ * <p>
+ * The quota is the Droop quota: the number of non-empty ballots divided by one
+ * more than the number of seats, rounded down, plus one. In each round, if the
+ * leading candidate has reached the quota, that candidate is elected and the
+ * surplus (the votes in excess of the quota) is transferred to the next
+ * preferences on the candidate's ballots, according to the
+ * {@link TransferRule}. Otherwise, if no more candidates remain than seats to
+ * fill, all of them are elected. Otherwise the candidate with the fewest votes
+ * is eliminated and the candidate's ballots are transferred at their current
+ * weight. Ties are broken by alphabetical order of names, as in
+ * {@link Election}.
+ * </p>
+ *
+ * <p>
+ * The ballots counting toward each continuing candidate are kept in a separate
+ * pile, so a transfer only touches the ballots of the candidate whose votes are
+ * being transferred.
+ * </p>
+ */
+public class STVElection {
+
+	/**
+	 * The rule used to transfer the surplus of an elected candidate.
+	 */
+	public enum TransferRule {
+		/**
+		 * Inclusive Gregory method: all ballots of the elected candidate are
+		 * transferred, each at its weight multiplied by surplus / votes.
+		 */
+		GREGORY,
+		/**
+		 * Last parcel method: only the ballots the candidate received in the most
+		 * recent transfer to the candidate (or on the first count) are transferred,
+		 * each at its weight multiplied by surplus / (value of the parcel), but never
+		 * more than its weight.
+		 */
+		LAST_PARCEL
+	}
+
+	/**
+	 * The continuing candidates: neither elected nor eliminated. Sorted at the
+	 * start of each round by current votes, from most to least, with ties broken
+	 * by alphabetical order.
+	 */
+	private ArrayList<Candidate> continuing = new ArrayList<>();
+
+	/**
+	 * The numbering of the candidates of this election, used to index the arrays
+	 * below.
+	 */
+	private CandidateIndex index;
+
+	/**
+	 * Whether each candidate is continuing, indexed by candidate index.
+	 */
+	private boolean[] isContinuing;
+
+	/**
+	 * The current votes of each candidate, indexed by candidate index, in units of
+	 * {@link Ballot#WEIGHT_ONE}.
+	 */
+	private long[] votes;
+
+	/**
+	 * The ballots counting toward each continuing candidate, indexed by candidate index.
+	 */
+	private ArrayList<ArrayList<Ballot>> piles = new ArrayList<>();
+
+	/**
+	 * The index in its pile of the first ballot of each candidate's last parcel,
+	 * indexed by candidate index.
+	 */
+	private int[] parcelStart;
+
+	/**
+	 * For each candidate, indexed by candidate index, the number of the last transfer that
+	 * gave the candidate ballots. Used to detect the start of a new parcel.
+	 */
+	private int[] lastTransfer;
+
+	/**
+	 * The number of transfers carried out so far.
+	 */
+	private int numTransfers = 0;
+
+	/**
+	 * The weight of ballots which no longer count toward any candidate, including
+	 * the fractions lost to rounding, in units of {@link Ballot#WEIGHT_ONE}.
+	 */
+	private long exhausted = 0;
+
+	/**
+	 * The quota, in units of {@link Ballot#WEIGHT_ONE}.
+	 */
+	private long quota;
+
+	/**
+	 * The number of seats to fill.
+	 */
+	private int seats;
+
+	/**
+	 * The surplus transfer rule.
+	 */
+	private TransferRule rule;
+
+	/**
+	 * The elected candidates, in order of election.
+	 */
+	private ArrayList<Candidate> winners = new ArrayList<>();
+
+	/**
+	 * Current round.
+	 */
+	private int round = 1;
+
+	/**
+	 * Compare first by votes, then by name.
+	 */
+	private Comparator<Candidate> voteComparator = new Comparator<>() {
+		@Override
+		public int compare(Candidate o1, Candidate o2) {
+			int i1 = index.indexOf(o1), i2 = index.indexOf(o2);
+			int result = Long.compare(votes[i2], votes[i1]);
+			return result != 0 ? result : Integer.compare(i1, i2);
+		}
+	};
+
+	/**
+	 * Creates new STVElection instance. The given Ballots are duplicated so they
+	 * can be safely reclaimed, and every duplicate gets the weight of one vote.
+	 *
+	 * @param candidateSet the set of candidates participating in the election
+	 * @param ballots      the ballots
+	 * @param seats        the number of seats to fill, at least 1
+	 * @param rule         the surplus transfer rule
+	 * @throws RCVException if two ballots have the same ID number
+	 * @throws RCVException if a ballot contains a candidate not in the given
+	 *                      candidateSet
+	 */
+	public STVElection(Set<Candidate> candidateSet, Collection<Ballot> ballots, int seats, TransferRule rule)
+			throws RCVException {
+		if (candidateSet == null)
+			throw new IllegalArgumentException("null candidates");
+		if (ballots == null)
+			throw new IllegalArgumentException("null ballots");
+		if (seats < 1)
+			throw new IllegalArgumentException("seats must be at least 1: " + seats);
+		if (rule == null)
+			throw new IllegalArgumentException("null transfer rule");
+		this.seats = seats;
+		this.rule = rule;
+		this.index = new CandidateIndex(candidateSet);
+		int n = index.size();
+		this.isContinuing = new boolean[n];
+		this.votes = new long[n];
+		this.parcelStart = new int[n];
+		this.lastTransfer = new int[n];
+		for (int i = 0; i < n; i++) {
+			piles.add(new ArrayList<>());
+			isContinuing[i] = true;
+			continuing.add(index.get(i));
+		}
+		Set<Integer> idSet = new HashSet<>();
+		long numValid = 0;
+		for (Ballot ballot : ballots) {
+			if (!idSet.add(ballot.id))
+				throw new RCVException("Duplicate ballot id " + ballot.id);
+			for (Candidate c : ballot.entries) {
+				if (!candidateSet.contains(c))
+					throw new RCVException("Ballot entry " + c + " does not occur in candidate list");
+			}
+			Ballot copy = ballot.duplicate();
+			copy.weight = Ballot.WEIGHT_ONE;
+			Candidate top = copy.getTop();
+			if (top != null) {
+				piles.get(index.indexOf(top)).add(copy);
+				votes[index.indexOf(top)] += copy.weight;
+				numValid++;
+			}
+		}
+		this.quota = (numValid / (seats + 1) + 1) * Ballot.WEIGHT_ONE;
+	}
+
+	/**
+	 * Formats a fixed-point number of votes as a decimal, without trailing zeros.
+	 *
+	 * @param value number of votes, in units of {@link Ballot#WEIGHT_ONE}
+	 * @return the decimal representation, e.g., "3" or "2.2"
+	 */
+	static String format(long value) {
+		long whole = value / Ballot.WEIGHT_ONE, fraction = value % Ballot.WEIGHT_ONE;
+		if (fraction == 0)
+			return Long.toString(whole);
+		String digits = Long.toString(Ballot.WEIGHT_ONE + fraction).substring(1);
+		int end = digits.length();
+		while (digits.charAt(end - 1) == '0')
+			end--;
+		return whole + "." + digits.substring(0, end);
+	}
+
+	private String describe(Candidate c) {
+		return c.name + " (" + format(votes[index.indexOf(c)]) + ")";
+	}
+
+	/**
+	 * Prints current round number, the votes of each continuing candidate, and
+	 * the exhausted votes.
+	 *
+	 * @param out stream to which to print
+	 */
+	public void printState(PrintStream out) {
+		out.println("Round " + round + ":");
+		for (Candidate c : continuing)
+			out.println(describe(c));
+		out.println("Exhausted (" + format(exhausted) + ")");
+	}
+
+	/**
+	 * Computes a * b / d, rounded down, exactly. The product is formed in 128
+	 * bits, so it cannot overflow.
+	 *
+	 * @param a a non-negative number
+	 * @param b a non-negative number, at most d
+	 * @param d a positive number
+	 * @return a * b / d, rounded down, which is at most a
+	 */
+	static long multiplyDivide(long a, long b, long d) {
+		long high = Math.multiplyHigh(a, b), low = a * b;
+
+		if (high == 0 && low >= 0)
+			return low / d;
+		// long division of the 128-bit product: high < d since the quotient is at
+		// most a, and the remainder stays below d, so shifting it left one bit
+		// fits in 64 bits (unsigned)...
+		long quotient = 0, remainder = high;
+		for (int bit = 63; bit >= 0; bit--) {
+			remainder = (remainder << 1) | ((low >>> bit) & 1);
+			quotient <<= 1;
+			if (Long.compareUnsigned(remainder, d) >= 0) {
+				remainder -= d;
+				quotient |= 1;
+			}
+		}
+		return quotient;
+	}
+
+	/**
+	 * Transfers the given ballots, which are counting toward a candidate who is no
+	 * longer continuing, to the next continuing candidate on each ballot. The new
+	 * weight of each ballot is its weight multiplied by numerator / denominator,
+	 * rounded down. Ballots with no continuing candidate left become exhausted.
+	 *
+	 * @param ballots     the ballots to transfer
+	 * @param numerator   numerator of the transfer value, at most denominator
+	 * @param denominator denominator of the transfer value, positive
+	 * @return the sum of the new weights of the ballots
+	 */
+	private long transfer(Iterable<Ballot> ballots, long numerator, long denominator) {
+		long sum = 0;
+
+		numTransfers++;
+		for (Ballot ballot : ballots) {
+			long weight = multiplyDivide(ballot.weight, numerator, denominator);
+
+			sum += weight;
+			ballot.weight = weight;
+			ballot.entries.removeFirst();
+			while (!ballot.entries.isEmpty() && !isContinuing[index.indexOf(ballot.entries.getFirst())])
+				ballot.entries.removeFirst();
+			Candidate next = ballot.getTop();
+			if (next == null) {
+				exhausted += weight;
+				continue;
+			}
+			int i = index.indexOf(next);
+			ArrayList<Ballot> pile = piles.get(i);
+			if (lastTransfer[i] != numTransfers) {
+				lastTransfer[i] = numTransfers;
+				parcelStart[i] = pile.size();
+			}
+			pile.add(ballot);
+			votes[i] += weight;
+		}
+		return sum;
+	}
+
+	/**
+	 * Elects the given continuing candidate, then transfers the candidate's
+	 * surplus, if any, according to the transfer rule. The fractions of the
+	 * surplus lost to rounding become exhausted.
+	 *
+	 * @param c the candidate to elect
+	 */
+	private void elect(Candidate c) {
+		int i = index.indexOf(c);
+		ArrayList<Ballot> pile = piles.get(i);
+		long total = votes[i], surplus = total - quota;
+
+		isContinuing[i] = false;
+		continuing.remove(c);
+		winners.add(c);
+		piles.set(i, null);
+		if (surplus <= 0 || winners.size() == seats)
+			return;
+		Collection<Ballot> transferred = pile;
+		long base = total;
+		if (rule == TransferRule.LAST_PARCEL) {
+			transferred = pile.subList(parcelStart[i], pile.size());
+			base = 0;
+			for (Ballot ballot : transferred)
+				base += ballot.weight;
+			if (base == 0)
+				return;
+		}
+		// the transfer value is at most 1...
+		long value = Math.min(surplus, base);
+		exhausted += value - transfer(transferred, value, base);
+		votes[i] = total - value;
+	}
+
+	/**
+	 * Eliminates the given continuing candidate, transferring all of the
+	 * candidate's ballots at their current weight.
+	 *
+	 * @param c the candidate to eliminate
+	 */
+	private void eliminate(Candidate c) {
+		int i = index.indexOf(c);
+		ArrayList<Ballot> pile = piles.get(i);
+
+		isContinuing[i] = false;
+		continuing.remove(c);
+		piles.set(i, null);
+		transfer(pile, 1, 1);
+		votes[i] = 0;
+	}
+
+	/**
+	 * Executes the election by iterating through the rounds until all seats are
+	 * filled or no continuing candidates remain. Prints all information to out.
+	 *
+	 * @param out stream to which to print
+	 * @return the elected candidates, in order of election; this may have fewer
+	 *         elements than the number of seats if there are not enough
+	 *         candidates
+	 */
+	public ArrayList<Candidate> execute(PrintStream out) {
+		out.println("Quota: " + format(quota) + "\n");
+		while (true) {
+			continuing.sort(voteComparator);
+			printState(out);
+			if (continuing.isEmpty()) {
+				out.println("No continuing candidates.   Seats unfilled: " + (seats - winners.size()));
+				return winners;
+			}
+			Candidate top = continuing.getFirst();
+			if (votes[index.indexOf(top)] >= quota) {
+				out.println("\nElected: " + describe(top));
+				elect(top);
+			} else if (continuing.size() <= seats - winners.size()) {
+				out.println();
+				for (Candidate c : continuing) {
+					out.println("Elected: " + describe(c));
+					isContinuing[index.indexOf(c)] = false;
+					winners.add(c);
+				}
+				continuing.clear();
+			} else {
+				Candidate last = continuing.getLast();
+				out.println("\nEliminated: " + describe(last));
+				eliminate(last);
+			}
+			if (winners.size() == seats)
+				return winners;
+			round++;
+			out.println();
+		}
+	}
+}
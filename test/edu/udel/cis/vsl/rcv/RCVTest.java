@@ -1,14 +1,27 @@
 package edu.udel.cis.vsl.rcv;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
+import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.math.BigInteger;
+import java.nio.file.Files;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
 import java.util.Set;
 
 import org.junit.Test;
@@ -17,6 +30,18 @@ public class RCVTest {
 	PrintStream out = System.out;
 	Candidate keith = new Candidate("Keith"), kathy = new Candidate("Kathy"), steve = new Candidate("Steve");
 
+	/**
+	 * Deletes a file, or a directory and everything in it.
+	 */
+	private static void delete(File file) {
+		File[] children = file.listFiles();
+		if (children != null) {
+			for (File child : children)
+				delete(child);
+		}
+		file.delete();
+	}
+
 	@Test
 	public void tie1() throws RCVException {
 		out.println("Test tie1...\n");
@@ -108,4 +133,406 @@ public class RCVTest {
 		assertEquals(0, winners.size());
 	}
 
+	@Test
+	public void cachedResult() throws IOException, RCVException {
+		out.println("Test cachedResult...\n");
+		File dir = Files.createTempDirectory("rcv").toFile();
+		try {
+			cachedResult(dir);
+		} finally {
+			delete(dir);
+		}
+	}
+
+	private void cachedResult(File dir) throws IOException, RCVException {
+		ResultCache cache = new ResultCache(dir, 1);
+		RCV rcv1 = RCV.parse("candidates.txt", "ballot1.txt", "ballot2.txt", "ballot3.txt", "ballot3.txt");
+		rcv1.setResultCache(cache);
+		ByteArrayOutputStream buf1 = new ByteArrayOutputStream();
+		ArrayList<Candidate> winners1 = rcv1.execute(new PrintStream(buf1), 2);
+		// same multiset of ballots in a different order...
+		RCV rcv2 = RCV.parse("candidates.txt", "ballot3.txt", "ballot2.txt", "ballot3.txt", "ballot1.txt");
+		rcv2.setResultCache(cache);
+		assertEquals(rcv1.fingerprint(2), rcv2.fingerprint(2));
+		assertNotEquals(rcv1.fingerprint(2), rcv1.fingerprint(1));
+		ByteArrayOutputStream buf2 = new ByteArrayOutputStream();
+		ArrayList<Candidate> winners2 = rcv2.execute(new PrintStream(buf2), 2);
+		assertEquals(winners1, winners2);
+		assertEquals(winners1.toString(), winners2.toString());
+		String output1 = buf1.toString(), output2 = buf2.toString();
+		assertTrue(output2.contains("(cached result)"));
+		assertEquals(output1.substring(output1.indexOf('\n')), output2.substring(output2.indexOf('\n')));
+		// capacity 1: a different election evicts the first result...
+		rcv2.execute(new PrintStream(new ByteArrayOutputStream()), 1);
+		assertEquals(1, dir.listFiles((d, name) -> name.endsWith(".rcv")).length);
+		assertNull(cache.get(rcv1.fingerprint(2)));
+		out.print(output2);
+	}
+
+	@Test
+	public void cacheEvictsLeastRecentlyUsed() throws IOException {
+		out.println("Test cacheEvictsLeastRecentlyUsed...\n");
+		File dir = Files.createTempDirectory("rcv").toFile();
+		try {
+			cacheEvictsLeastRecentlyUsed(dir);
+		} finally {
+			delete(dir);
+		}
+	}
+
+	private void cacheEvictsLeastRecentlyUsed(File dir) throws IOException {
+		ResultCache cache = new ResultCache(dir, 2);
+		List<Candidate> winners = Arrays.asList(kathy);
+		cache.put("a", winners, "A\n");
+		cache.put("b", winners, "B\n");
+		// a is now more recently used than b, even within the same millisecond...
+		cache.get("a");
+		cache.put("c", winners, "C\n");
+		assertNull(cache.get("b"));
+		assertEquals("A\n", cache.get("a").output);
+		assertEquals("C\n", cache.get("c").output);
+		// and a new cache on the same directory keeps the order...
+		cache = new ResultCache(dir, 2);
+		cache.put("d", winners, "D\n");
+		assertNull(cache.get("a"));
+		assertEquals("C\n", cache.get("c").output);
+		out.println();
+	}
+
+	@Test
+	public void cacheSharedDirectory() throws IOException, InterruptedException {
+		out.println("Test cacheSharedDirectory...\n");
+		File dir = Files.createTempDirectory("rcv").toFile();
+		try {
+			cacheSharedDirectory(dir);
+		} finally {
+			delete(dir);
+		}
+	}
+
+	private void cacheSharedDirectory(File dir) throws IOException, InterruptedException {
+		List<Candidate> winners = Arrays.asList(kathy);
+		// several processes using the same directory at the same time...
+		List<Throwable> errors = Collections.synchronizedList(new ArrayList<>());
+		Thread[] threads = new Thread[4];
+		for (int t = 0; t < threads.length; t++) {
+			String fingerprint = "f" + t % 2;
+			threads[t] = new Thread(() -> {
+				try {
+					ResultCache cache = new ResultCache(dir, 2);
+					for (int i = 0; i < 50; i++) {
+						cache.put(fingerprint, winners, "X\n");
+						assertEquals("X\n", cache.get(fingerprint).output);
+					}
+				} catch (Throwable e) {
+					errors.add(e);
+				}
+			});
+			threads[t].start();
+		}
+		for (Thread thread : threads)
+			thread.join();
+		assertEquals(Collections.emptyList(), errors);
+		// a hit is served even if the order of use cannot be recorded...
+		File index = new File(dir, "index");
+		index.delete();
+		index.mkdir();
+		new File(index, "blocker").createNewFile();
+		assertEquals("X\n", new ResultCache(dir, 2).get("f0").output);
+		out.println();
+	}
+
+	@Test
+	public void checkpointResume() throws IOException, RCVException {
+		out.println("Test checkpointResume...\n");
+		Candidate dave = new Candidate("Dave");
+		Set<Candidate> candidates = new HashSet<>(Arrays.asList(keith, kathy, steve, dave));
+		Collection<Ballot> ballots = Arrays.asList(new Ballot(1, keith, steve, kathy), new Ballot(2, keith, dave),
+				new Ballot(3, kathy, steve, keith), new Ballot(4, kathy, dave, steve), new Ballot(5, steve, keith),
+				new Ballot(6, steve, kathy), new Ballot(7, dave, keith, kathy), new Ballot(8, kathy),
+				new Ballot(9, dave, steve));
+		File file = File.createTempFile("rcv", ".ckpt");
+		file.deleteOnExit();
+		RCV rcv = new RCV(candidates, ballots);
+		rcv.setCheckpoint(file, false);
+		ByteArrayOutputStream buf = new ByteArrayOutputStream();
+		ArrayList<Candidate> winners = rcv.execute(new PrintStream(buf), 4);
+		String expected = buf.toString();
+		List<String> lines = Files.readAllLines(file.toPath());
+		// simulate a crash after each record, or before the first one...
+		for (int n = 0; n <= lines.size(); n++) {
+			Files.write(file.toPath(), lines.subList(0, n));
+			rcv = new RCV(candidates, ballots);
+			rcv.setCheckpoint(file, true);
+			buf = new ByteArrayOutputStream();
+			assertEquals(winners, rcv.execute(new PrintStream(buf), 4));
+			assertEquals(expected, buf.toString());
+		}
+		// simulate a crash in the middle of a record, then resume twice...
+		byte[] bytes = String.join("\n", lines).concat("\n").getBytes();
+		for (int n = 0; n < bytes.length; n++) {
+			Files.write(file.toPath(), Arrays.copyOf(bytes, n));
+			for (int k = 0; k < 2; k++) {
+				rcv = new RCV(candidates, ballots);
+				rcv.setCheckpoint(file, true);
+				buf = new ByteArrayOutputStream();
+				assertEquals(winners, rcv.execute(new PrintStream(buf), 4));
+				assertEquals(expected, buf.toString());
+			}
+		}
+		// the replayed rounds cannot be audited or rolled up...
+		for (int k = 0; k < 2; k++) {
+			rcv = new RCV(candidates, ballots);
+			rcv.setCheckpoint(file, true);
+			if (k == 0)
+				rcv.startAuditTrail();
+			else
+				rcv.startRollup();
+			try {
+				rcv.execute(new PrintStream(new ByteArrayOutputStream()), 4);
+				fail("expected RCVException");
+			} catch (RCVException e) {
+			}
+		}
+		// a cached result leaves the checkpoint untouched...
+		Files.write(file.toPath(), lines);
+		File dir = Files.createTempDirectory("rcv").toFile();
+		try {
+			ResultCache cache = new ResultCache(dir);
+			rcv = new RCV(candidates, ballots);
+			rcv.setResultCache(cache);
+			rcv.execute(new PrintStream(new ByteArrayOutputStream()), 4);
+			rcv = new RCV(candidates, ballots);
+			rcv.setResultCache(cache);
+			rcv.setCheckpoint(file, false);
+			buf = new ByteArrayOutputStream();
+			rcv.execute(new PrintStream(buf), 4);
+			assertTrue(buf.toString().contains("(cached result)"));
+			assertEquals(lines, Files.readAllLines(file.toPath()));
+		} finally {
+			delete(dir);
+		}
+		out.print(expected);
+		out.println();
+	}
+
+	@Test
+	public void auditTrail() throws RCVException {
+		out.println("Test auditTrail...\n");
+		Ballot b1 = new Ballot(101, keith, kathy, steve);
+		Ballot b2 = new Ballot(102, steve, kathy, keith);
+		Ballot b3 = new Ballot(103, kathy, steve, keith);
+		Ballot b4 = new Ballot(104, kathy, steve, keith);
+		Ballot b5 = new Ballot(105, keith, kathy, steve);
+		Ballot b6 = new Ballot(106, kathy);
+		Set<Candidate> candidates = new HashSet<>(Arrays.asList(keith, kathy, steve));
+		Collection<Ballot> ballots = Arrays.asList(b1, b2, b3, b4, b5, b6);
+		RCV rcv = new RCV(candidates, ballots);
+		AuditTrail audit = rcv.startAuditTrail();
+		// another instance sharing some of the candidates must not renumber them:
+		new RCV(new HashSet<>(Arrays.asList(keith, steve)), Arrays.asList(b1)).startAuditTrail();
+		ArrayList<Candidate> winners = rcv.execute(out, 3);
+		assertEquals(Arrays.asList(kathy, steve, keith), winners);
+		// indexes: Kathy 0, Keith 1, Steve 2...
+		assertArrayEquals(new int[] { 1, 1, 2, 1, 2, 0, 2, 1, 2, 3, 1, 1 }, audit.path(102));
+		assertArrayEquals(new int[] { 1, 1, 0, 2, 1, -1, 3, 1, -1 }, audit.path(106));
+		assertEquals("Ballot 102: place 1: round 1 Steve, round 2 Kathy; place 2: round 1 Steve; place 3: round 1 Keith",
+				audit.describe(102));
+		assertNull(audit.path(999));
+		audit.print(out);
+		out.println();
+	}
+
+	@Test
+	public void rollup() throws RCVException {
+		out.println("Test rollup...\n");
+		Ballot b1 = new Ballot(101, keith, kathy, steve);
+		Ballot b2 = new Ballot(102, steve, kathy, keith);
+		Ballot b3 = new Ballot(103, kathy, steve, keith);
+		Ballot b4 = new Ballot(104, kathy, steve, keith);
+		Ballot b5 = new Ballot(105, keith, kathy, steve);
+		Ballot b6 = new Ballot(106, kathy);
+		Ballot b7 = new Ballot(107, steve);
+		b1.group = b2.group = new String[] { "d1", "p1" };
+		b3.group = b4.group = new String[] { "d1", "p2" };
+		b5.group = b6.group = b7.group = new String[] { "d2", "p3" };
+		// only directories below the root are units...
+		File root = new File("rt");
+		assertArrayEquals(new String[] { "d1", "p1" }, Ballot.groupOf(new File("rt/d1/./p1/a.txt"), root));
+		assertArrayEquals(new String[] { "d1", "p1" },
+				Ballot.groupOf(new File("rt/d1/p1/a.txt").getAbsoluteFile(), root));
+		assertNull(Ballot.groupOf(new File("rt/a.txt"), root));
+		assertNull(Ballot.groupOf(new File("d1/p1/a.txt"), root));
+		Set<Candidate> candidates = new HashSet<>(Arrays.asList(keith, kathy, steve));
+		RCV rcv = new RCV(candidates, Arrays.asList(b1, b2, b3, b4, b5, b6, b7));
+		Rollup rollup = rcv.startRollup();
+		ArrayList<Candidate> winners = rcv.execute(out, 1);
+		assertEquals(Arrays.asList(kathy), winners);
+		assertEquals(1, rollup.tally(1, 1, "d1", keith));
+		assertEquals(1, rollup.tally(1, 1, "d1", steve));
+		assertEquals(2, rollup.tally(1, 1, "d1/p2", kathy));
+		assertEquals(1, rollup.tally(1, 1, "d2/p3", steve));
+		// round 2: Keith and Steve eliminated, ballot 107 exhausted...
+		assertEquals(4, rollup.tally(1, 2, "d1", kathy));
+		assertEquals(2, rollup.tally(1, 2, "d1/p1", kathy));
+		assertEquals(2, rollup.tally(1, 2, "d2", kathy));
+		assertEquals(0, rollup.tally(1, 2, "d2/p3", keith));
+		assertEquals(-1, rollup.tally(1, 3, "d1", kathy));
+		assertEquals(-1, rollup.tally(1, 1, "d3", kathy));
+		rollup.print(out);
+	}
+
+	@Test
+	public void stvGregory() throws RCVException {
+		out.println("Test stvGregory...\n");
+		Candidate dave = new Candidate("Dave");
+		Set<Candidate> candidates = new HashSet<>(Arrays.asList(keith, kathy, steve, dave));
+		ArrayList<Ballot> ballots = new ArrayList<>();
+		for (int i = 0; i < 6; i++)
+			ballots.add(new Ballot(100 + i, kathy, steve));
+		ballots.add(new Ballot(200, keith, steve));
+		ballots.add(new Ballot(201, keith, steve));
+		ballots.add(new Ballot(300, steve));
+		ballots.add(new Ballot(301, steve));
+		ballots.add(new Ballot(400, dave, keith));
+		RCV rcv = new RCV(candidates, ballots);
+		rcv.setTransferRule(STVElection.TransferRule.GREGORY);
+		ByteArrayOutputStream buf = new ByteArrayOutputStream();
+		ArrayList<Candidate> winners = rcv.execute(new PrintStream(buf), 2);
+		String output = buf.toString();
+		assertEquals(Arrays.asList(kathy, steve), winners);
+		// quota 4, Kathy's surplus of 2 goes to Steve at 1/3 per ballot, rounded down...
+		assertTrue(output.contains("Steve (3.999998)"));
+		assertTrue(output.contains("Exhausted (0.000002)"));
+		out.print(output);
+		out.println();
+	}
+
+	@Test
+	public void stvRejectsRecording() throws IOException, RCVException {
+		out.println("Test stvRejectsRecording...\n");
+		Set<Candidate> candidates = new HashSet<>(Arrays.asList(keith, kathy, steve));
+		Collection<Ballot> ballots = Arrays.asList(new Ballot(1, keith, steve), new Ballot(2, kathy));
+		File file = File.createTempFile("rcv", ".ckpt");
+		file.deleteOnExit();
+		Files.writeString(file.toPath(), "unchanged\n");
+		for (int k = 0; k < 3; k++) {
+			RCV rcv = new RCV(candidates, ballots);
+			rcv.setTransferRule(STVElection.TransferRule.GREGORY);
+			if (k == 0)
+				rcv.setCheckpoint(file, false);
+			else if (k == 1)
+				rcv.startAuditTrail();
+			else
+				rcv.startRollup();
+			try {
+				rcv.execute(new PrintStream(new ByteArrayOutputStream()), 2);
+				fail("expected RCVException");
+			} catch (RCVException e) {
+				out.println(e.getMessage());
+			}
+		}
+		assertEquals("unchanged\n", Files.readString(file.toPath()));
+		out.println();
+	}
+
+	@Test
+	public void stvLastParcel() throws RCVException {
+		out.println("Test stvLastParcel...\n");
+		Candidate dave = new Candidate("Dave");
+		Set<Candidate> candidates = new HashSet<>(Arrays.asList(keith, kathy, steve, dave));
+		Collection<Ballot> ballots = Arrays.asList(new Ballot(1, keith, steve), new Ballot(2, keith, steve),
+				new Ballot(3, keith, steve), new Ballot(4, dave, keith, kathy), new Ballot(5, dave, keith, kathy),
+				new Ballot(6, kathy), new Ballot(7, kathy), new Ballot(8, kathy), new Ballot(9, steve));
+		RCV rcv = new RCV(candidates, ballots);
+		ByteArrayOutputStream buf = new ByteArrayOutputStream();
+		rcv.setTransferRule(STVElection.TransferRule.GREGORY);
+		assertEquals(Arrays.asList(keith, kathy), rcv.execute(new PrintStream(buf), 2));
+		// all 5 of Keith's ballots transfer at 1/5...
+		assertTrue(buf.toString().contains("Elected: Kathy (3.4)"));
+		buf = new ByteArrayOutputStream();
+		rcv.setTransferRule(STVElection.TransferRule.LAST_PARCEL);
+		assertEquals(Arrays.asList(keith, kathy), rcv.execute(new PrintStream(buf), 2));
+		// only the 2 ballots received from Dave transfer, at 1/2...
+		assertTrue(buf.toString().contains("Elected: Kathy (4)"));
+		out.print(buf);
+		out.println();
+	}
+
+	@Test
+	public void roundsAllocateNothing() throws RCVException {
+		out.println("Test roundsAllocateNothing...\n");
+		com.sun.management.ThreadMXBean bean = (com.sun.management.ThreadMXBean) ManagementFactory
+				.getThreadMXBean();
+		ArrayList<Candidate> list = new ArrayList<>();
+		for (int i = 0; i < 20; i++)
+			list.add(new Candidate("C" + (100 + i)));
+		Set<Candidate> candidates = new HashSet<>(list);
+		ArrayList<Ballot> ballots = new ArrayList<>();
+		Random random = new Random(2024);
+		for (int i = 0; i < 5000; i++) {
+			Collections.shuffle(list, random);
+			ballots.add(new Ballot(i, new ArrayList<>(list.subList(0, 1 + random.nextInt(list.size())))));
+		}
+		long allocated = 0;
+		// the first runs warm up the JIT...
+		for (int i = 0; i < 20; i++) {
+			Election el = new Election(candidates, ballots);
+			long start = bean.getCurrentThreadAllocatedBytes();
+			el.execute(null);
+			allocated = bean.getCurrentThreadAllocatedBytes() - start;
+		}
+		Election el = new Election(candidates, ballots);
+		el.execute(out);
+		out.println();
+		assertEquals("bytes allocated by rounds", 0, allocated);
+	}
+
+	@Test
+	public void auditTrailOverhead() throws RCVException {
+		out.println("Test auditTrailOverhead...\n");
+		ArrayList<Candidate> list = new ArrayList<>();
+		for (int i = 0; i < 20; i++)
+			list.add(new Candidate("C" + (100 + i)));
+		Set<Candidate> candidates = new HashSet<>(list);
+		ArrayList<Ballot> ballots = new ArrayList<>();
+		Random random = new Random(2024);
+		for (int i = 0; i < 20000; i++) {
+			Collections.shuffle(list, random);
+			ballots.add(new Ballot(i, new ArrayList<>(list.subList(0, 1 + random.nextInt(list.size())))));
+		}
+		CandidateIndex index = new CandidateIndex(candidates);
+		long plain = Long.MAX_VALUE, audited = Long.MAX_VALUE;
+		// the best of many runs, after the first ones warm up the JIT...
+		for (int i = 0; i < 30; i++) {
+			Election el = new Election(candidates, ballots);
+			long start = System.nanoTime();
+			el.execute(null);
+			plain = Math.min(plain, System.nanoTime() - start);
+			el = new Election(candidates, ballots);
+			el.setAuditTrail(new AuditTrail(ballots, index), 1);
+			start = System.nanoTime();
+			el.execute(null);
+			audited = Math.min(audited, System.nanoTime() - start);
+		}
+		out.println("Rounds: " + plain / 1000 + " us, with audit trail: " + audited / 1000 + " us\n");
+		assertTrue(audited < 3 * plain);
+	}
+
+	@Test
+	public void stvLargeTransfer() {
+		out.println("Test stvLargeTransfer...\n");
+		// surpluses beyond 9.2 million votes overflow a 64-bit product...
+		long[][] cases = { { 7, 3, 5 },
+				{ Ballot.WEIGHT_ONE, 20_000_000 * Ballot.WEIGHT_ONE, 30_000_000 * Ballot.WEIGHT_ONE },
+				{ Long.MAX_VALUE, Long.MAX_VALUE - 1, Long.MAX_VALUE },
+				{ 999_999, 9_223_372_036_854_775L, 9_223_372_036_854_776L } };
+		for (long[] c : cases) {
+			BigInteger product = BigInteger.valueOf(c[0]).multiply(BigInteger.valueOf(c[1]));
+			long expected = product.divide(BigInteger.valueOf(c[2])).longValueExact();
+			assertEquals(expected, STVElection.multiplyDivide(c[0], c[1], c[2]));
+			out.println(c[0] + " * " + c[1] + " / " + c[2] + " = " + expected);
+		}
+		out.println();
+	}
 }